@@ -0,0 +1,192 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip benchmark of {@link NurApiLocalSocketTransport} against loopback TCP through {@link NurApiSocketTransport}.
+ * Both talk to an in-process echo server, so the numbers compare the socket paths only, not a reader.
+ * Results are written to logcat with tag NurLocalSocketBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NurLocalSocketBenchmark
+{
+	static final String TAG = "NurLocalSocketBenchmark";
+
+	static final int WARMUP_ROUNDS = 200;
+	static final int ROUNDS = 2000;
+	static final int PACKET_SIZE = 64;
+
+	@Test
+	public void compareRoundTrip() throws Exception
+	{
+		String name = "nurapi_bench_" + System.nanoTime();
+		LocalServerSocket localServer = new LocalServerSocket(name);
+		Thread localEcho = startEcho(() -> {
+			LocalSocket s = localServer.accept();
+			echo(s.getInputStream(), s.getOutputStream());
+			s.close();
+		});
+
+		ServerSocket tcpServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Thread tcpEcho = startEcho(() -> {
+			Socket s = tcpServer.accept();
+			s.setTcpNoDelay(true);
+			echo(s.getInputStream(), s.getOutputStream());
+			s.close();
+		});
+
+		NurApiLocalSocketTransport local = new NurApiLocalSocketTransport(name, null);
+		local.connect();
+		assertFalse(local.isUsingFallback());
+		double localUs = measure(local);
+		local.disconnect();
+
+		NurApiSocketTransport tcp = new NurApiSocketTransport("127.0.0.1", tcpServer.getLocalPort());
+		tcp.connect();
+		double tcpUs = measure(tcp);
+		tcp.disconnect();
+
+		localServer.close();
+		tcpServer.close();
+		localEcho.join(1000);
+		tcpEcho.join(1000);
+
+		Log.i(TAG, String.format("%d x %d byte round trips: local %.1f us, tcp %.1f us", ROUNDS, PACKET_SIZE, localUs, tcpUs));
+	}
+
+	@Test
+	public void readTimeoutIsNotDisconnect() throws Exception
+	{
+		String name = "nurapi_timeout_" + System.nanoTime();
+		LocalServerSocket server = new LocalServerSocket(name);
+		Thread peer = startEcho(() -> {
+			LocalSocket s = server.accept();
+			echo(s.getInputStream(), s.getOutputStream());
+			s.close();
+		});
+
+		NurApiLocalSocketTransport tr = new NurApiLocalSocketTransport(name, null);
+		tr.setReadTimeout(50);
+		tr.connect();
+
+		byte[] buf = new byte[PACKET_SIZE];
+		assertEquals(0, tr.readData(buf));
+		assertTrue(tr.isConnected());
+		assertEquals(1, tr.getMetrics().getReadTimeouts());
+
+		tr.disconnect();
+		server.close();
+		peer.join(1000);
+	}
+
+	@Test
+	public void peerCloseDisconnects() throws Exception
+	{
+		String name = "nurapi_close_" + System.nanoTime();
+		LocalServerSocket server = new LocalServerSocket(name);
+		Thread peer = startEcho(() -> server.accept().close());
+
+		NurApiLocalSocketTransport tr = new NurApiLocalSocketTransport(name, null);
+		tr.setReadTimeout(1000);
+		tr.connect();
+		peer.join(1000);
+
+		byte[] buf = new byte[PACKET_SIZE];
+		assertEquals(-1, tr.readData(buf));
+		assertFalse(tr.isConnected());
+		server.close();
+	}
+
+	/** @return Average round trip time in microseconds. */
+	static double measure(NurApiTransport tr) throws IOException
+	{
+		byte[] tx = new byte[PACKET_SIZE];
+		byte[] rx = new byte[PACKET_SIZE];
+		for (int i = 0; i < tx.length; i++)
+			tx[i] = (byte) i;
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++)
+			roundTrip(tr, tx, rx);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			roundTrip(tr, tx, rx);
+		return (System.nanoTime() - start) / 1000.0 / ROUNDS;
+	}
+
+	static void roundTrip(NurApiTransport tr, byte[] tx, byte[] rx) throws IOException
+	{
+		tr.writeData(tx, tx.length);
+		int got = 0;
+		byte[] chunk = new byte[rx.length];
+		while (got < rx.length) {
+			int n = tr.readData(chunk);
+			if (n < 0)
+				throw new IOException("Connection lost");
+			System.arraycopy(chunk, 0, rx, got, Math.min(n, rx.length - got));
+			got += n;
+		}
+	}
+
+	interface Peer
+	{
+		void run() throws IOException;
+	}
+
+	static Thread startEcho(Peer peer)
+	{
+		Thread t = new Thread(() -> {
+			try {
+				peer.run();
+			} catch (IOException e) {
+				Log.d(TAG, "peer: " + e.getMessage());
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	static void echo(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+			out.flush();
+		}
+	}
+}
@@ -50,6 +50,9 @@ public class NurApiBLEAutoConnect implements UartServiceEvents, NurApiAutoConnec
 
 	private int mLastRemoteRssi = 0;
 
+	private boolean mWriteNoResponse = false;
+	private int mTxCredits = UartService.DEFAULT_TX_CREDITS;
+
 	// The physical transport used here.
 	private final NurApiBLETransport mTr = new NurApiBLETransport();
 
@@ -77,6 +80,7 @@ public class NurApiBLEAutoConnect implements UartServiceEvents, NurApiAutoConnec
 			else
 			{
 				mService.setEventListener(NurApiBLEAutoConnect.this, mContext);
+				mService.setWriteWithoutResponse(mWriteNoResponse, mTxCredits);
 				if (!NurApiBLEAutoConnect.this.mAddr.isEmpty() && mService.getConnState() != UartService.STATE_CONNECTED)
 					mService.connect(NurApiBLEAutoConnect.this.mAddr);
 			}
@@ -104,6 +108,36 @@ public class NurApiBLEAutoConnect implements UartServiceEvents, NurApiAutoConnec
 		return mLastRemoteRssi;
 	}
 
+	/**
+	 * Send data to the reader with write without response, keeping up to {@code credits} writes in flight.
+	 * Credits above 1 take effect on Android 13 and newer only.
+	 * Readers without the characteristic property use acknowledged writes. Applied on next connect.
+	 *
+	 * @param enable True to use write without response.
+	 * @param credits Max writes in flight.
+	 * @see UartService#setWriteWithoutResponse(boolean, int)
+	 * @see #getTxBurstThroughput()
+	 */
+	public void setWriteWithoutResponse(boolean enable, int credits)
+	{
+		mWriteNoResponse = enable;
+		mTxCredits = Math.max(1, credits);
+		if (mService != null)
+			mService.setWriteWithoutResponse(enable, mTxCredits);
+	}
+
+	/**
+	 * Measured TX throughput while data was waiting to be sent, to compare write types on a phone and reader.
+	 *
+	 * @return Bytes per second, 0 if not measured or the service is not bound.
+	 * @see UartService#getTxBurstThroughput()
+	 */
+	public double getTxBurstThroughput()
+	{
+		UartService service = mService;
+		return service != null ? service.getTxBurstThroughput() : 0;
+	}
+
 	/**
 	 * Set address of the accessory / reader. This is the "connect" as well as the "disconnect" (when address is empty) method.
 	 *
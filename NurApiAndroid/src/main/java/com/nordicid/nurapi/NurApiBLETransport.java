@@ -36,6 +36,7 @@ public class NurApiBLETransport implements NurApiTransport
 	private String mAddr;
 	RingBuffer mRxBuf = new RingBuffer(1024 * 64);
 	final Object readLock = new Object();
+	private final NurTransportMetrics mMetrics = new NurTransportMetrics();
 
 	/**
 	 * The transport constructor.
@@ -65,9 +66,22 @@ public class NurApiBLETransport implements NurApiTransport
 	public void setService(UartService srv)
 	{
 		mRxBuf.Reset();
+		if (mService != null && mService != srv)
+			mService.mMetrics = null;
 		mService = srv;
 		if (srv == null)
 			mConnected = false;
+		else
+			srv.mMetrics = mMetrics;
+	}
+
+	/**
+	 * @return Throughput, error and latency counters of the current connection.
+	 * Segments are BLE characteristic writes.
+	 */
+	public NurTransportMetrics getMetrics()
+	{
+		return mMetrics;
 	}
 	
 	/**
@@ -105,6 +119,7 @@ public class NurApiBLETransport implements NurApiTransport
 		if (len > buffer.length)
 			len = buffer.length;
 		mRxBuf.Read(buffer, len);
+		mMetrics.onRead(buffer, 0, len);
 		return len;
 	}
 
@@ -117,6 +132,7 @@ public class NurApiBLETransport implements NurApiTransport
 			Log.i(TAG, "write disconnected!");
 			return -1;
 		}
+		mMetrics.onWrite(buffer, len);
 		byte [] subArray = Arrays.copyOf(buffer, len);
 		mService.writeRXCharacteristic(subArray);
 		return subArray.length;
@@ -132,6 +148,7 @@ public class NurApiBLETransport implements NurApiTransport
 			throw new Exception("Conn failed; service null!");
 		
 		Log.i(TAG, "connect OK");
+		mMetrics.reset();
 		mConnected = true;
 	}
 	
@@ -0,0 +1,262 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+/**
+ * Local (AF_UNIX) socket transport for the integrated reader service.
+ * Avoids the loopback TCP stack on devices with an integrated reader.
+ * The socket name is device specific; there is no default, the reader service of the device must publish one.
+ * If the local socket cannot be opened, falls back to TCP through {@link NurApiSocketTransport}.
+ * @author Nordic ID.
+ */
+public class NurApiLocalSocketTransport implements NurApiTransport
+{
+	static final String TAG = "NurApiLocalSocketTransport";
+
+	private final String mSocketName;
+	private final NurApiSocketTransport mFallback;
+	private LocalSocket mSocket = null;
+	private InputStream mInput = null;
+	private OutputStream mOutput = null;
+	private boolean mConnected = false;
+	private boolean mUsingFallback = false;
+	private int mReadTimeout = 0;
+	private volatile NurTransportEvents mEvents = null;
+	private final NurTransportMetrics mMetrics = new NurTransportMetrics();
+
+	/**
+	 * Constructor to create transport for integrated reader connection.
+	 * @param socketName Abstract namespace name of the reader service socket.
+	 * @param fallback TCP transport to use if the local socket is not available, null to disable fallback.
+	 */
+	public NurApiLocalSocketTransport(String socketName, NurApiSocketTransport fallback)
+	{
+		mSocketName = socketName;
+		mFallback = fallback;
+		if (mFallback != null) {
+			mFallback.setTransportEvents(tr -> {
+				NurTransportEvents ev = mEvents;
+				if (ev != null)
+					ev.onConnectionLost(this);
+			});
+		}
+	}
+
+	/**
+	 * Set listener for connection events.
+	 * @param ev Listener, null to remove.
+	 */
+	public void setTransportEvents(NurTransportEvents ev)
+	{
+		mEvents = ev;
+	}
+
+	/**
+	 * Set maximum time a single read blocks. When it expires readData() returns 0. Applied on next connect.
+	 * @param ms Timeout in milliseconds, 0 to block until data arrives.
+	 */
+	public void setReadTimeout(int ms)
+	{
+		mReadTimeout = Math.max(0, ms);
+	}
+
+	public int getReadTimeout()
+	{
+		return mReadTimeout;
+	}
+
+	/**
+	 * @return true if the last connect fell back to TCP.
+	 */
+	public boolean isUsingFallback()
+	{
+		return mUsingFallback;
+	}
+
+	/**
+	 * @return Throughput, error and latency counters of the current connection, from the TCP transport when fallen back.
+	 */
+	public NurTransportMetrics getMetrics()
+	{
+		if (mUsingFallback)
+			return mFallback.getMetrics();
+		return mMetrics;
+	}
+
+	@Override
+	public void connect() throws Exception
+	{
+		if (isConnected())
+			return;
+
+		mUsingFallback = false;
+		LocalSocket socket = new LocalSocket();
+		try {
+			socket.connect(new LocalSocketAddress(mSocketName, LocalSocketAddress.Namespace.ABSTRACT));
+			socket.setSoTimeout(mReadTimeout);
+			mInput = socket.getInputStream();
+			mOutput = socket.getOutputStream();
+			mSocket = socket;
+			mMetrics.reset();
+			mConnected = true;
+			Log.d(TAG, "connect OK " + mSocketName);
+			return;
+		}
+		catch (IOException e)
+		{
+			Log.d(TAG, "local socket " + mSocketName + " failed: " + e.getMessage());
+			try {
+				socket.close();
+			} catch (Exception ignored) { }
+		}
+
+		if (mFallback == null)
+			throw new NurApiException("Exception when connecting to NUR device.");
+
+		Log.d(TAG, "falling back to TCP");
+		mFallback.connect();
+		mUsingFallback = true;
+	}
+
+	@Override
+	public void disconnect()
+	{
+		Log.d(TAG, "disconnect() mConnected " + mConnected);
+
+		if (mUsingFallback) {
+			mFallback.disconnect();
+			return;
+		}
+
+		boolean wasConnected;
+		synchronized (this) {
+			wasConnected = mConnected;
+			mConnected = false;
+		}
+		try {
+			if (mSocket != null) {
+				// Unblocks a pending read
+				mSocket.shutdownInput();
+			}
+		} catch (Exception ignored) { }
+		try {
+			if (mSocket != null)
+				mSocket.close();
+		} catch (Exception ignored) { }
+
+		NurTransportEvents ev = mEvents;
+		if (wasConnected && ev != null)
+			ev.onConnectionLost(this);
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		if (mUsingFallback)
+			return mFallback.isConnected();
+		return mConnected;
+	}
+
+	@Override
+	public int readData(byte[] buffer) throws IOException
+	{
+		if (mUsingFallback)
+			return mFallback.readData(buffer);
+
+		if (!mConnected || mInput == null)
+			return -1;
+
+		int r;
+		try {
+			r = mInput.read(buffer, 0, buffer.length);
+		}
+		catch (IOException e) {
+			if (!mConnected)
+				return -1;
+			if (mReadTimeout > 0 && isTimeout(e)) {
+				mMetrics.onReadTimeout();
+				return 0;
+			}
+			Log.d(TAG, "readData error: " + e.getMessage());
+			mMetrics.onReadError(e.toString());
+			disconnect();
+			return -1;
+		}
+
+		if (r < 0) {
+			disconnect();
+			return -1;
+		}
+		mMetrics.onRead(buffer, 0, r);
+		return r;
+	}
+
+	/**
+	 * LocalSocket reports read timeout as IOException caused by EAGAIN, other errors are real failures.
+	 * Only the errno is checked, exception messages depend on the platform and locale.
+	 */
+	static boolean isTimeout(IOException e)
+	{
+		if (e instanceof java.net.SocketTimeoutException)
+			return true;
+		for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof ErrnoException)
+				return ((ErrnoException) cause).errno == OsConstants.EAGAIN;
+		}
+		return false;
+	}
+
+	@Override
+	public int writeData(byte[] buffer, int len) throws IOException
+	{
+		if (mUsingFallback)
+			return mFallback.writeData(buffer, len);
+
+		if (mOutput == null)
+			return -1;
+
+		mMetrics.onWrite(buffer, len);
+		try {
+			mOutput.write(buffer, 0, len);
+			mMetrics.onSegment();
+		} catch (Exception e) {
+			Log.d(TAG, "writeData error: " + e.getMessage());
+			mMetrics.onWriteError(e.toString());
+			len = -1;
+		}
+		return len;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean disableAck()
+	{
+		return false;
+	}
+}
@@ -19,19 +19,28 @@ package com.nordicid.nurapi;
 import android.content.Context;
 import android.util.Log;
 
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class NurApiSocketAutoConnect implements NurApiAutoConnectTransport
 {
 	static final String TAG = "NurApiSocketAutoConnect";
 
 	private final NurApi mApi;
-    private String mAddress = ""; // Spec addr: ip:port
+    private String mAddress = ""; // Spec addr: ip:port[,ip:port...]
 	private String mHost = "";
 	private int mPort = 0;
+	private final List<InetSocketAddress> mCandidates = new ArrayList<>(); // Unresolved, guarded by itself
+	private int mRaceStagger = NurConnectRace.DEFAULT_STAGGER;
 	private boolean mInvalidAddress = false;
 
 	public static final int STATE_DISCONNECTED = 0;
@@ -39,41 +48,435 @@ public class NurApiSocketAutoConnect implements NurApiAutoConnectTransport
 	public static final int STATE_CONNECTED = 2;
 	int mState = STATE_DISCONNECTED;
 
+	private boolean mUseChannelTransport = false;
+	private NurSocketHub mHub = null;
+
+	private int mConnectTimeout = NurApiSocketTransport.DEFAULT_CONNECT_TIMEOUT;
+	private int mReadTimeout = 0;
+	private int mIdleTimeout = 0;
+	private boolean mTcpNoDelay = false;
+	private int mCoalesceWindow = 0;
+	private String mLocalSocketName = null;
+	private NurReconnectPolicy mPolicy = new NurReconnectPolicy();
+	private boolean mKeepAlive = false;
+	private boolean mAutoTune = false;
+	private int mHeartbeatInterval = 0;
+	private int mHeartbeatMaxMissed = 2;
+	private NurHeartbeat mHeartbeat = null;
+	private final NurSessionState mSession;
+
 	public NurApiSocketAutoConnect(@SuppressWarnings("unused") Context c, NurApi na)
 	{
         this.mApi = na;
+		this.mSession = new NurSessionState(na);
 	}
 
-	private void disconnect() 
+	/**
+	 * Reader setup, accessory configuration and inventory stream state restored after a reconnect.
+	 * Apply setup through it, or record what was applied directly, to have it restored.
+	 * Cleared when the address changes.
+	 * @return Session state of this connection.
+	 */
+	public NurSessionState getSession()
 	{
-		boolean joinAutoConnThread = false;
+		return mSession;
+	}
 
-		if (mAutoConnRunning) {
-			joinAutoConnThread = true;
-			mAutoConnRunning = false;
-			try {
-				mAutoConnThread.interrupt();
-			} catch (Exception e) {
-				e.printStackTrace();
+	/**
+	 * Select NIO {@link NurApiSocketChannelTransport} instead of the stream based {@link NurApiSocketTransport}.
+	 * Takes effect on the next connection attempt.
+	 * @param enable true to use the NIO channel transport.
+	 */
+	public void setUseChannelTransport(boolean enable)
+	{
+		mUseChannelTransport = enable;
+	}
+
+	public boolean getUseChannelTransport()
+	{
+		return mUseChannelTransport;
+	}
+
+	/**
+	 * Serve the connection from a shared selector hub instead of a dedicated blocking socket.
+	 * Takes effect on the next connection attempt.
+	 * @param hub Hub to use, e.g. {@link NurSocketHub#getShared()}. null to use a dedicated socket.
+	 */
+	public void setSocketHub(NurSocketHub hub)
+	{
+		mHub = hub;
+	}
+
+	public NurSocketHub getSocketHub()
+	{
+		return mHub;
+	}
+
+	/**
+	 * Set timeouts used by the created socket transports. Takes effect on the next connection attempt.
+	 * Read and idle timeouts are not supported by {@link NurApiSocketChannelTransport}.
+	 * @param connectTimeout TCP connect timeout in milliseconds, 0 for OS default.
+	 * @param readTimeout Maximum time a single read blocks in milliseconds, 0 to block until data arrives.
+	 * @param idleTimeout Time without received data after which the link is disconnected, 0 to disable.
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout, int idleTimeout)
+	{
+		mConnectTimeout = Math.max(0, connectTimeout);
+		mReadTimeout = Math.max(0, readTimeout);
+		mIdleTimeout = Math.max(0, idleTimeout);
+	}
+
+	public int getConnectTimeout()
+	{
+		return mConnectTimeout;
+	}
+
+	public int getReadTimeout()
+	{
+		return mReadTimeout;
+	}
+
+	public int getIdleTimeout()
+	{
+		return mIdleTimeout;
+	}
+
+	/**
+	 * Set write policy of the created {@link NurApiSocketTransport}. Takes effect on the next connection attempt.
+	 * @param tcpNoDelay true to disable Nagle's algorithm.
+	 * @param coalesceWindow Write coalescing window in milliseconds, 0 to send every write immediately.
+	 * @see NurApiSocketTransport#setWriteCoalesceWindow(int)
+	 */
+	public void setWritePolicy(boolean tcpNoDelay, int coalesceWindow)
+	{
+		mTcpNoDelay = tcpNoDelay;
+		mCoalesceWindow = Math.max(0, coalesceWindow);
+	}
+
+	public boolean getTcpNoDelay()
+	{
+		return mTcpNoDelay;
+	}
+
+	public int getWriteCoalesceWindow()
+	{
+		return mCoalesceWindow;
+	}
+
+	/**
+	 * Connect "integrated_reader" address over a local (AF_UNIX) socket, falling back to TCP.
+	 * Off by default. Takes effect on the next connection attempt.
+	 * @param name Abstract namespace socket name published by the device's reader service. null to always use TCP.
+	 */
+	public void setLocalSocketName(String name)
+	{
+		mLocalSocketName = name;
+	}
+
+	public String getLocalSocketName()
+	{
+		return mLocalSocketName;
+	}
+
+	/**
+	 * Set reconnection schedule and reachability probing.
+	 * @param policy Policy to use, null restores the default policy.
+	 */
+	public void setReconnectPolicy(NurReconnectPolicy policy)
+	{
+		mPolicy = policy != null ? policy : new NurReconnectPolicy();
+	}
+
+	public NurReconnectPolicy getReconnectPolicy()
+	{
+		return mPolicy;
+	}
+
+	/**
+	 * Enable heartbeat that pings the reader while connected. After maxMissed failed pings
+	 * the link is considered dead and reconnect starts, so a half-open connection is detected
+	 * in about interval * maxMissed plus the NurApi command timeout.
+	 * @param interval Ping interval in milliseconds, 0 to disable heartbeat.
+	 * @param maxMissed Number of consecutive failed pings before disconnecting.
+	 */
+	public void setHeartbeat(int interval, int maxMissed)
+	{
+		mHeartbeatInterval = Math.max(0, interval);
+		mHeartbeatMaxMissed = Math.max(1, maxMissed);
+	}
+
+	public int getHeartbeatInterval()
+	{
+		return mHeartbeatInterval;
+	}
+
+	public int getHeartbeatMaxMissed()
+	{
+		return mHeartbeatMaxMissed;
+	}
+
+	/**
+	 * Enable TCP keepalive on the created {@link NurApiSocketTransport}. Takes effect on the next connection attempt.
+	 * @param keepAlive true to enable keepalive probes.
+	 */
+	public void setKeepAlive(boolean keepAlive)
+	{
+		mKeepAlive = keepAlive;
+	}
+
+	public boolean getKeepAlive()
+	{
+		return mKeepAlive;
+	}
+
+	/**
+	 * Enable adaptive socket buffer sizing on the created {@link NurApiSocketTransport}. Takes effect on the next connection attempt.
+	 * @param autoTune true to size buffers from measured throughput and round trip time.
+	 * @see NurApiSocketTransport#setAutoTune(boolean)
+	 */
+	public void setAutoTune(boolean autoTune)
+	{
+		mAutoTune = autoTune;
+	}
+
+	public boolean getAutoTune()
+	{
+		return mAutoTune;
+	}
+
+	private synchronized void startHeartbeat(NurApiTransport tr)
+	{
+		stopHeartbeat();
+		if (mHeartbeatInterval > 0) {
+			// Pings share the bounded connect executor when one is set, e.g. by NurReaderFleet
+			ScheduledExecutorService executor;
+			synchronized (mThreadLock) {
+				executor = mExecutor;
 			}
+			mHeartbeat = new NurHeartbeat(mApi, tr, mHeartbeatInterval, mHeartbeatMaxMissed, executor);
+			mHeartbeat.start();
+		}
+	}
+
+	private synchronized void stopHeartbeat()
+	{
+		if (mHeartbeat != null) {
+			mHeartbeat.stop();
+			mHeartbeat = null;
+		}
+	}
+
+	/**
+	 * Run the connect logic as short tasks on a shared executor instead of a dedicated thread.
+	 * Backoff delays are scheduled, not slept, so one small pool can serve many readers.
+	 * Takes effect when connecting is started next time.
+	 * @param executor Executor to use, null to use a dedicated thread.
+	 * @param startDelay Delay in milliseconds before the first attempt each time connecting starts,
+	 *                   e.g. to stagger reconnects of many readers after a common network outage.
+	 */
+	public void setExecutor(ScheduledExecutorService executor, int startDelay)
+	{
+		synchronized (mThreadLock) {
+			mExecutor = executor;
+			mStartDelay = Math.max(0, startDelay);
+		}
+	}
+
+	/**
+	 * @return Metrics of the current transport, null if there is none.
+	 */
+	public NurTransportMetrics getMetrics()
+	{
+		NurApiTransport tr = mTr;
+		if (tr instanceof NurApiSocketTransport)
+			return ((NurApiSocketTransport) tr).getMetrics();
+		if (tr instanceof NurApiSocketChannelTransport)
+			return ((NurApiSocketChannelTransport) tr).getMetrics();
+		if (tr instanceof NurApiSocketHubTransport)
+			return ((NurApiSocketHubTransport) tr).getMetrics();
+		if (tr instanceof NurApiLocalSocketTransport)
+			return ((NurApiLocalSocketTransport) tr).getMetrics();
+		return null;
+	}
+
+	/**
+	 * @return One of STATE_DISCONNECTED, STATE_CONNECTING or STATE_CONNECTED.
+	 */
+	public int getState()
+	{
+		return mState;
+	}
+
+	/**
+	 * Set delay between starting connects to consecutive addresses when the address
+	 * has several comma separated candidates, e.g. "10.0.0.5:4333,192.168.1.5:4333".
+	 * @param ms Delay in milliseconds, 0 to connect all candidates at once.
+	 */
+	public void setRaceStagger(int ms)
+	{
+		mRaceStagger = Math.max(0, ms);
+	}
+
+	public int getRaceStagger()
+	{
+		return mRaceStagger;
+	}
+
+	/**
+	 * TCP check before the full NurApi connect. Integrated reader is always local, no probe.
+	 * Each probe is a full TCP session on the reader, so it is skipped after repeated failures.
+	 */
+	boolean isReachable(NurReconnectPolicy policy)
+	{
+		if (mHost.equals("integrated_reader"))
+			return true;
+		List<InetSocketAddress> candidates = getCandidates();
+		if (candidates.size() > 1)
+			return raceCandidates(candidates);
+		if (!policy.shouldProbe())
+			return true;
+		int timeout = mConnectTimeout > 0 ? mConnectTimeout : NurApiSocketTransport.DEFAULT_CONNECT_TIMEOUT;
+		boolean ok = NurReconnectPolicy.probe(mHost, mPort, policy.getProbeTimeout(timeout));
+		policy.onProbeResult(ok);
+		return ok;
+	}
+
+	private List<InetSocketAddress> getCandidates()
+	{
+		synchronized (mCandidates) {
+			return new ArrayList<>(mCandidates);
 		}
+	}
+
+	/**
+	 * Race all candidate addresses and switch transport to the fastest one.
+	 * The winning connection is handed to the stream transport, so the reader sees a single session.
+	 */
+	private boolean raceCandidates(List<InetSocketAddress> candidates)
+	{
+		List<InetSocketAddress> resolved = new ArrayList<>();
+		int timeout = mConnectTimeout > 0 ? mConnectTimeout : NurApiSocketTransport.DEFAULT_CONNECT_TIMEOUT;
+		for (InetSocketAddress a : candidates)
+			resolved.add(NurHostResolver.getShared().resolve(a.getHostString(), a.getPort(), timeout));
 
-		// Disconnect transport
+		SocketChannel ch = NurConnectRace.connect(resolved, mRaceStagger, timeout);
+		if (ch == null)
+			return false;
+
+		boolean handedOver = false;
 		try {
-			Log.d(TAG, "disconnect " + mTr);
-			if (mTr != null) {
-				mTr.disconnect();
-				mTr = null;
+			int idx = resolved.indexOf(ch.socket().getRemoteSocketAddress());
+			if (idx < 0)
+				return false;
+			String host = candidates.get(idx).getHostString();
+			int port = candidates.get(idx).getPort();
+			synchronized (mThreadLock) {
+				if (!isCurrentThread())
+					return false;
+				if (!host.equals(mHost) || port != mPort) {
+					Log.d(TAG, "Switching to " + host + ":" + port);
+					mHost = host;
+					mPort = port;
+					mTr = createTransport();
+				}
+				if (mTr instanceof NurApiSocketTransport && !mTr.isConnected()) {
+					((NurApiSocketTransport) mTr).setConnectedChannel(ch);
+					handedOver = true;
+				}
 			}
+			return true;
+		} finally {
+			if (!handedOver) {
+				try {
+					ch.close();
+				} catch (Exception ignored) { }
+			}
+		}
+	}
+
+	NurApiTransport createTransport()
+	{
+		if (mLocalSocketName != null && mHost.equals("integrated_reader")) {
+			NurApiLocalSocketTransport tr = new NurApiLocalSocketTransport(mLocalSocketName, createStreamTransport());
+			tr.setReadTimeout(mReadTimeout);
+			tr.setTransportEvents(mTransportEvents);
+			return tr;
+		}
+
+		if (mHub != null) {
+			NurApiSocketHubTransport tr = mHub.createTransport(mHost, mPort);
+			tr.setConnectTimeout(mConnectTimeout);
+			tr.setReadTimeout(mReadTimeout);
+			tr.setIdleTimeout(mIdleTimeout);
+			tr.setTransportEvents(mTransportEvents);
+			return tr;
+		}
+		if (mUseChannelTransport) {
+			NurApiSocketChannelTransport tr = new NurApiSocketChannelTransport(mHost, mPort);
+			tr.setConnectTimeout(mConnectTimeout);
+			tr.setTransportEvents(mTransportEvents);
+			return tr;
+		}
+		return createStreamTransport();
+	}
+
+	private NurApiSocketTransport createStreamTransport()
+	{
+		NurApiSocketTransport tr = new NurApiSocketTransport(mHost, mPort);
+		tr.setConnectTimeout(mConnectTimeout);
+		tr.setReadTimeout(mReadTimeout);
+		tr.setIdleTimeout(mIdleTimeout);
+		tr.setTcpNoDelay(mTcpNoDelay);
+		tr.setKeepAlive(mKeepAlive);
+		tr.setAutoTune(mAutoTune);
+		tr.setWriteCoalesceWindow(mCoalesceWindow);
+		tr.setTransportEvents(mTransportEvents);
+		return tr;
+	}
+
+	private void disconnect() 
+	{
+		stopHeartbeat();
+
+		Thread autoConnThread;
+		ScheduledFuture<?> task;
+		synchronized (mThreadLock) {
+			mAutoConnRunning = false;
+			mReconnectPending = false;
+			// Executor threads are not ours to interrupt or join, the task is cancelled instead
+			autoConnThread = mTaskToken == null ? mAutoConnThread : null;
+			task = mTask;
+			mAutoConnThread = null;
+			mTaskToken = null;
+			mTask = null;
+		}
+
+		// Aborts sleeps, reachability checks and connects in progress
+		if (autoConnThread != null)
+			autoConnThread.interrupt();
+		if (task != null)
+			task.cancel(true);
+
+		// Disconnect transport; cleared first so that its lost event is ignored
+		try {
+			NurApiTransport tr = mTr;
+			mTr = null;
+			Log.d(TAG, "disconnect " + tr);
+			if (tr != null)
+				tr.disconnect();
 		} catch (Exception ignored) { }
 
-		if (joinAutoConnThread) {
+		// All blocking steps of the thread are interruptible or unblocked by the transport disconnect above,
+		// so this normally returns within milliseconds. A thread that is still running after the timeout
+		// notices that it is no longer current and exits without touching the connection.
+		if (autoConnThread != null) {
 			try {
-				mAutoConnThread.join(10000);
-			} catch (Exception e) {
-				e.printStackTrace();
+				autoConnThread.join(SHUTDOWN_JOIN_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
-			mAutoConnThread = null;
+			if (autoConnThread.isAlive())
+				Log.d(TAG, "Auto connect thread did not stop in " + SHUTDOWN_JOIN_TIMEOUT + " ms");
 		}
 
 		try {
@@ -108,12 +511,15 @@ public class NurApiSocketAutoConnect implements NurApiAutoConnectTransport
 
 			if (!mAutoConnRunning) {
 				startAutoConnectThread();
+			} else if (mTr != null && !mTr.isConnected()) {
+				requestReconnect();
 			}
 			return;
 		}
 
 		Log.d(TAG, "setAddress " + addr);
 		disconnect();
+		mSession.clear();
 
 		mInvalidAddress = false;
 		if (addr.toLowerCase(Locale.ENGLISH).equals("disabled"))
@@ -124,27 +530,42 @@ public class NurApiSocketAutoConnect implements NurApiAutoConnectTransport
 			return;
 		}
 
+		List<InetSocketAddress> candidates = new ArrayList<>();
 		if (addr.toLowerCase(Locale.ENGLISH).equals("integrated_reader"))
 		{
 			mHost = "integrated_reader";
 			mPort = 0;
 		}
 		else {
-			try {
-				URI uri = new URI("my://" + addr);
-				String host = uri.getHost();
-				int port = uri.getPort();
-
-				if (uri.getHost() == null || uri.getPort() == -1) {
+			for (String part : addr.split(",")) {
+				try {
+					URI uri = new URI("my://" + part.trim());
+					String host = uri.getHost();
+					int port = uri.getPort();
+
+					if (host == null || port == -1) {
+						mInvalidAddress = true;
+						break;
+					}
+					candidates.add(InetSocketAddress.createUnresolved(host, port));
+				} catch (URISyntaxException e) {
 					mInvalidAddress = true;
-				} else {
-					mHost = host;
-					mPort = port;
+					break;
 				}
-			} catch (URISyntaxException e) {
+			}
+
+			if (!mInvalidAddress && !candidates.isEmpty()) {
+				mHost = candidates.get(0).getHostString();
+				mPort = candidates.get(0).getPort();
+			} else {
 				mInvalidAddress = true;
 			}
 		}
+		synchronized (mCandidates) {
+			mCandidates.clear();
+			if (!mInvalidAddress)
+				mCandidates.addAll(candidates);
+		}
 
 		if (mInvalidAddress) {
 			Log.d(TAG, "setAddress INVALID");
@@ -152,6 +573,9 @@ public class NurApiSocketAutoConnect implements NurApiAutoConnectTransport
 		}
 
 		mAddress = addr;
+		// Warm up name resolution while the connect thread starts
+		for (InetSocketAddress a : candidates)
+			NurHostResolver.getShared().prefetch(a.getHostString());
 		Log.d(TAG, "setAddress host=" + mHost);
 		Log.d(TAG, "setAddress port=" + mPort);
 
@@ -166,53 +590,234 @@ public class NurApiSocketAutoConnect implements NurApiAutoConnectTransport
 
 	void startAutoConnectThread()
 	{
-		mState = STATE_CONNECTING;
-		mAutoConnRunning = true;
-		mAutoConnThread = new Thread(mAutoConnRunnable);
-		mAutoConnThread.start();
+		synchronized (mThreadLock) {
+			mState = STATE_CONNECTING;
+			mAutoConnRunning = true;
+			if (mTr == null)
+				mTr = createTransport();
+			if (mAutoConnThread != null || mTaskToken != null) {
+				mReconnectPending = true;
+				return;
+			}
+			if (mExecutor != null) {
+				final Object token = new Object();
+				mTaskToken = token;
+				mPolicy.reset();
+				mTask = mExecutor.schedule(() -> runStep(token), mStartDelay, TimeUnit.MILLISECONDS);
+				return;
+			}
+			mAutoConnThread = new Thread(mAutoConnRunnable);
+			mAutoConnThread.start();
+		}
+	}
+
+	/** Start connecting again, or make the running connect thread continue after it has connected. */
+	void requestReconnect()
+	{
+		synchronized (mThreadLock) {
+			if (mAutoConnRunning)
+				startAutoConnectThread();
+		}
+	}
+
+	volatile NurApiTransport mTr = null;
+
+	/** Connection loss wakes up the reconnect logic right away, no polling. */
+	private final NurTransportEvents mTransportEvents = new NurTransportEvents() {
+		@Override
+		public void onConnectionLost(NurApiTransport transport)
+		{
+			if (transport != mTr)
+				return;
+
+			Log.d(TAG, "Connection lost");
+			mSession.onConnectionLost();
+			stopHeartbeat();
+			mState = STATE_DISCONNECTED;
+			mLostTime = System.currentTimeMillis();
+			requestReconnect();
+		}
+	};
+
+	private volatile long mLostTime = 0;
+	private volatile long mLastReconnectTime = -1;
+	private volatile int mReconnectCount = 0;
+
+	/**
+	 * @return Time from the last detected connection loss to connected again in milliseconds, -1 if not reconnected yet.
+	 */
+	public long getLastReconnectTime()
+	{
+		return mLastReconnectTime;
 	}
 
-	NurApiSocketTransport mTr = null;
+	/**
+	 * @return Number of reconnects after a detected connection loss.
+	 */
+	public int getReconnectCount()
+	{
+		return mReconnectCount;
+	}
 
+	/** Thread exits once connected; it is restarted when the transport reports connection loss. */
 	Runnable mAutoConnRunnable = new Runnable() {
 		@Override
 		public void run()
 		{
 			Log.d(TAG, "Auto connect thread started");
 
-			mTr = new NurApiSocketTransport(mHost, mPort);
+			NurReconnectPolicy policy = mPolicy;
+			policy.reset();
 			try {
-				while (mAutoConnRunning)
+				long delay;
+				while ((delay = connectStep(policy)) >= 0)
 				{
-					if (mTr.isConnected()) {
-						Thread.sleep(1000);
-						continue;
-					}
-
-					Log.d(TAG, "Trying to connect");
-					try {
-						mState = STATE_CONNECTING;
-						mApi.setTransport(mTr);
-						mApi.connect();
-						mState = STATE_CONNECTED;
-					} catch (Exception ex) {
-						Log.d(TAG, "FAILED");
-						mState = STATE_DISCONNECTED;
-						if (mAutoConnRunning)
-							Thread.sleep(1000);
-					}
+					if (delay > 0)
+						Thread.sleep(delay);
 				}
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				Log.d(TAG, "Auto connect thread interrupted");
 			}
 
-			mState = STATE_DISCONNECTED;
+			synchronized (mThreadLock) {
+				if (mAutoConnThread == Thread.currentThread())
+					mAutoConnThread = null;
+			}
 			Log.d(TAG, "Auto connect thread exit");
 		}
 	};
 
-	boolean mAutoConnRunning = false;
-	Thread mAutoConnThread = null;
+	/** Executor mode: run one step and schedule the next one instead of sleeping. */
+	private void runStep(final Object token)
+	{
+		synchronized (mThreadLock) {
+			if (mTaskToken != token)
+				return;
+			mAutoConnThread = Thread.currentThread();
+		}
+
+		long delay = connectStep(mPolicy);
+
+		synchronized (mThreadLock) {
+			if (mTaskToken != token)
+				return;
+			mAutoConnThread = null;
+			if (delay < 0) {
+				mTaskToken = null;
+				mTask = null;
+			} else {
+				mTask = mExecutor.schedule(() -> runStep(token), delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * One round of the connect logic, run by the auto connect thread or an executor task.
+	 * An unexpected error only costs this round, the schedule continues.
+	 * @return Delay in milliseconds before the next round, -1 when connected or stopped.
+	 */
+	private long connectStep(NurReconnectPolicy policy)
+	{
+		try {
+			return tryConnect(policy);
+		} catch (RuntimeException e) {
+			Log.d(TAG, "connect step failed: " + e);
+			mState = STATE_DISCONNECTED;
+			return isCurrentThread() ? policy.nextDelay() : -1;
+		}
+	}
+
+	private long tryConnect(NurReconnectPolicy policy)
+	{
+		if (!isCurrentThread())
+			return -1;
+		NurApiTransport tr = mTr;
+		if (tr == null)
+			return -1;
+
+		if (tr.isConnected()) {
+			synchronized (mThreadLock) {
+				if (!mReconnectPending) {
+					mAutoConnThread = null;
+					mTaskToken = null;
+					mTask = null;
+					return -1;
+				}
+				mReconnectPending = false;
+			}
+			return 0;
+		}
+
+		mState = STATE_CONNECTING;
+		if (!isReachable(policy)) {
+			mState = STATE_DISCONNECTED;
+			long delay = policy.nextDelay();
+			Log.d(TAG, "Not reachable, retry in " + delay + " ms");
+			return isCurrentThread() ? delay : -1;
+		}
+
+		// Candidate race may have switched the transport
+		tr = mTr;
+		if (tr == null)
+			return -1;
+
+		Log.d(TAG, "Trying to connect");
+		try {
+			synchronized (mThreadLock) {
+				if (!isCurrentThread())
+					return -1;
+				mApi.setTransport(tr);
+			}
+			mApi.connect();
+			if (!isCurrentThread()) {
+				// Stopped while connecting, the transport is not ours anymore
+				tr.disconnect();
+				return -1;
+			}
+			policy.reset();
+			if (mLostTime != 0)
+				mSession.restore();
+			mState = STATE_CONNECTED;
+			onConnected();
+			startHeartbeat(tr);
+			return 0;
+		} catch (Exception ex) {
+			mState = STATE_DISCONNECTED;
+			long delay = policy.nextDelay();
+			Log.d(TAG, "FAILED, retry in " + delay + " ms");
+			return isCurrentThread() ? delay : -1;
+		}
+	}
+
+	private void onConnected()
+	{
+		long lost = mLostTime;
+		if (lost != 0) {
+			mLastReconnectTime = System.currentTimeMillis() - lost;
+			mReconnectCount++;
+			mLostTime = 0;
+			Log.d(TAG, "Reconnected in " + mLastReconnectTime + " ms");
+		}
+	}
+
+	/** Maximum time disconnect() waits for the auto connect thread to exit. */
+	static final int SHUTDOWN_JOIN_TIMEOUT = 500;
+
+	private final Object mThreadLock = new Object();
+	volatile boolean mAutoConnRunning = false;
+	private boolean mReconnectPending = false;
+	volatile Thread mAutoConnThread = null;
+
+	private ScheduledExecutorService mExecutor = null;
+	private int mStartDelay = 0;
+	private Object mTaskToken = null;
+	private ScheduledFuture<?> mTask = null;
+
+	/** @return false if the calling auto connect thread has been stopped or replaced. */
+	private boolean isCurrentThread()
+	{
+		return mAutoConnRunning && mAutoConnThread == Thread.currentThread();
+	}
 
 	@Override
 	public void onPause() {
@@ -0,0 +1,302 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * NIO socket transport for NUR Java API.
+ * Uses a blocking {@link SocketChannel} instead of socket streams.
+ * Reads go straight into the caller's array through a cached heap wrapper, writes are staged
+ * in a pooled direct buffer so large packets are sent in segments without per call allocation.
+ * Can be used in place of {@link NurApiSocketTransport}.
+ * @author Nordic ID.
+ */
+public class NurApiSocketChannelTransport implements NurApiTransport
+{
+	static final String TAG = "NurApiSocketChannelTransport";
+
+	private final boolean isClient;
+	private SocketChannel mChannel = null;
+	private byte[] mReadArray = null;
+	private ByteBuffer mReadWrap = null;
+	private ByteBuffer mWriteBuf = null;
+	private final Object mWriteLock = new Object();
+	private String mHost = "";
+	private int mPort = 0;
+	private volatile boolean mConnected = false;
+	private int mConnectTimeout = NurApiSocketTransport.DEFAULT_CONNECT_TIMEOUT;
+	private volatile NurTransportEvents mEvents = null;
+	private final NurTransportMetrics mMetrics = new NurTransportMetrics();
+
+	/**
+	 * Server uses this internally.
+	 * @param client Client channel that is accepted by the server.
+	 */
+	public NurApiSocketChannelTransport(SocketChannel client)
+	{
+		isClient = false;
+		mChannel = client;
+	}
+
+	/**
+	 * Constructor to create transport for client connection.
+	 * @param host	IP address to the host NUR device.
+	 * @param port	Port to the host NUR device.
+	 */
+	public NurApiSocketChannelTransport(String host, int port)
+	{
+		isClient = true;
+		mHost = host;
+		mPort = port;
+	}
+
+	/**
+	 * Set listener for connection events.
+	 * @param ev Listener, null to remove.
+	 */
+	public void setTransportEvents(NurTransportEvents ev)
+	{
+		mEvents = ev;
+	}
+
+	/**
+	 * Set timeout for establishing the TCP connection.
+	 * @param ms Timeout in milliseconds, 0 to wait for the OS default.
+	 */
+	public void setConnectTimeout(int ms)
+	{
+		mConnectTimeout = Math.max(0, ms);
+	}
+
+	public int getConnectTimeout()
+	{
+		return mConnectTimeout;
+	}
+
+	@Override
+	public void connect() throws Exception
+	{
+		if (mConnected)
+			return;
+
+		if (isClient)
+		{
+			String host = mHost;
+			int port = mPort;
+			if (mHost.toLowerCase(Locale.ENGLISH).equals("integrated_reader")) {
+				host = "localhost";
+				port = 6734;
+			}
+
+			SocketChannel ch = null;
+			try {
+				ch = SocketChannel.open();
+				ch.configureBlocking(true);
+				ch.socket().connect(NurHostResolver.getShared().resolve(host, port, mConnectTimeout), mConnectTimeout);
+			}
+			catch (UnresolvedAddressException e)
+			{
+				closeQuietly(ch);
+				throw new NurApiException("Error connecting to NUR device. Unknown host: " + mHost);
+			}
+			catch (Exception e)
+			{
+				Log.d(TAG, "connect failed: " + e.getMessage());
+				closeQuietly(ch);
+				throw new NurApiException("Exception when connecting to NUR device.");
+			}
+			mChannel = ch;
+		}
+		else if (mChannel == null || !mChannel.isConnected())
+		{
+			throw new NurApiException("Error while opening channel between the client and the server.");
+		}
+
+		// A previous connection that failed on read may still hold its write buffer
+		releaseWriteBuffer();
+		synchronized (mWriteLock) {
+			mWriteBuf = NurDirectBufferPool.getShared().acquire();
+		}
+		mMetrics.reset();
+		mConnected = true;
+	}
+
+	@Override
+	public void disconnect()
+	{
+		Log.d(TAG, "disconnect() mConnected " + mConnected);
+
+		boolean wasConnected = setDisconnected();
+		closeQuietly(mChannel);
+
+		// Buffers are dropped only when no reader/writer can touch them anymore
+		releaseWriteBuffer();
+		synchronized (this) {
+			mReadArray = null;
+			mReadWrap = null;
+		}
+		notifyLost(wasConnected);
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return mConnected;
+	}
+
+	/**
+	 * @return Throughput, error and latency counters of the current connection.
+	 */
+	public NurTransportMetrics getMetrics()
+	{
+		return mMetrics;
+	}
+
+	@Override
+	public int readData(byte[] buffer) throws IOException
+	{
+		if (!mConnected)
+			return 0;
+
+		synchronized (this)
+		{
+			SocketChannel ch = mChannel;
+			if (ch == null)
+				return -1;
+
+			// NurApi reads into the same array every time, so the wrapper is allocated once
+			if (buffer != mReadArray) {
+				mReadArray = buffer;
+				mReadWrap = ByteBuffer.wrap(buffer);
+			}
+			ByteBuffer buf = mReadWrap;
+			buf.clear();
+
+			int r;
+			try {
+				r = ch.read(buf);
+			}
+			catch (IOException e) {
+				Log.d(TAG, "readData error: " + e.getMessage());
+				if (mConnected)
+					mMetrics.onReadError(e.toString());
+				r = -1;
+			}
+
+			if (r < 0)
+			{
+				// Graceful close or broken link, write buffer goes back to the pool right away
+				boolean wasConnected = setDisconnected();
+				closeQuietly(ch);
+				releaseWriteBuffer();
+				notifyLost(wasConnected);
+				return -1;
+			}
+
+			if (r > 0)
+				mMetrics.onRead(buffer, 0, r);
+			return r;
+		}
+	}
+
+	@Override
+	public int writeData(byte[] buffer, int len)
+	{
+		boolean lost = false;
+		synchronized (mWriteLock)
+		{
+			ByteBuffer buf = mWriteBuf;
+			if (buf == null || !mConnected)
+				return -1;
+
+			mMetrics.onWrite(buffer, len);
+			try {
+				int offset = 0;
+				while (offset < len)
+				{
+					int chunk = Math.min(buf.capacity(), len - offset);
+					buf.clear();
+					buf.put(buffer, offset, chunk);
+					buf.flip();
+					while (buf.hasRemaining())
+						mChannel.write(buf);
+					mMetrics.onSegment();
+					offset += chunk;
+				}
+			} catch (Exception e) {
+				Log.d(TAG, "writeData error: " + e.getMessage());
+				mMetrics.onWriteError(e.toString());
+				// Broken link, same as a failed read
+				lost = setDisconnected();
+				closeQuietly(mChannel);
+				releaseWriteBuffer();
+				len = -1;
+			}
+		}
+		notifyLost(lost);
+		return len;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean disableAck()
+	{
+		return false;
+	}
+
+	/** @return true if the state changed from connected. */
+	private boolean setDisconnected()
+	{
+		synchronized (mWriteLock) {
+			boolean was = mConnected;
+			mConnected = false;
+			return was;
+		}
+	}
+
+	private void releaseWriteBuffer()
+	{
+		synchronized (mWriteLock) {
+			NurDirectBufferPool.getShared().release(mWriteBuf);
+			mWriteBuf = null;
+		}
+	}
+
+	private void notifyLost(boolean wasConnected)
+	{
+		NurTransportEvents ev = mEvents;
+		if (wasConnected && ev != null)
+			ev.onConnectionLost(this);
+	}
+
+	private static void closeQuietly(SocketChannel ch)
+	{
+		try {
+			if (ch != null)
+				ch.close();
+		} catch (Exception ignored) { }
+	}
+}
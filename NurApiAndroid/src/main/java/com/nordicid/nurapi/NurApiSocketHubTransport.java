@@ -0,0 +1,480 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+/**
+ * Socket transport for NUR Java API served by a {@link NurSocketHub}.
+ * The socket is non-blocking and owned by one of the hub's I/O threads; received bytes are
+ * read straight to a direct receive ring that {@link #readData(byte[])} drains to the caller's array.
+ * Create instances with {@link NurSocketHub#createTransport(String, int)}.
+ * @author Nordic ID.
+ */
+public class NurApiSocketHubTransport implements NurApiTransport
+{
+	static final String TAG = "NurApiSocketHubTransport";
+
+	private final NurSocketHub mHub;
+	private final String mHost;
+	private final int mPort;
+
+	private NurSocketHub.IoLoop mLoop = null;
+	private SocketChannel mChannel = null;
+	private SelectionKey mKey = null;
+	private volatile boolean mConnected = false;
+	private volatile boolean mClosed = true;
+	private boolean mConnectDone = false;
+	private boolean mConnectOk = false;
+	private boolean mReadPaused = false;
+	private final AtomicBoolean mRegistered = new AtomicBoolean(false);
+	private int mGeneration = 0;
+
+	static final int RX_RING_SIZE = 1024 * 64;
+
+	/** Receive ring, the socket reads to it directly. Head and count are guarded by mReadLock. */
+	private final ByteBuffer mRxRing = ByteBuffer.allocateDirect(RX_RING_SIZE);
+	private int mRxHead = 0;
+	private int mRxCount = 0;
+	private final Object mReadLock = new Object();
+	private final Object mConnectLock = new Object();
+	private final Object mWriteLock = new Object();
+	private ByteBuffer mPendingTx = null;
+
+	private int mConnectTimeout = NurApiSocketTransport.DEFAULT_CONNECT_TIMEOUT;
+	private int mReadTimeout = 0;
+	private int mIdleTimeout = 0;
+	private volatile long mLastRxTime = 0;
+	private volatile NurTransportEvents mEvents = null;
+	private final NurTransportMetrics mMetrics = new NurTransportMetrics();
+
+	NurApiSocketHubTransport(NurSocketHub hub, String host, int port)
+	{
+		mHub = hub;
+		mHost = host;
+		mPort = port;
+	}
+
+	/**
+	 * Set listener for connection events.
+	 * @param ev Listener, null to remove.
+	 */
+	public void setTransportEvents(NurTransportEvents ev)
+	{
+		mEvents = ev;
+	}
+
+	/**
+	 * Set timeout for establishing the TCP connection.
+	 * @param ms Timeout in milliseconds, 0 to use 30 seconds.
+	 */
+	public void setConnectTimeout(int ms)
+	{
+		mConnectTimeout = Math.max(0, ms);
+	}
+
+	public int getConnectTimeout()
+	{
+		return mConnectTimeout;
+	}
+
+	/**
+	 * Set maximum time a single read waits for data.
+	 * @param ms Timeout in milliseconds, 0 to wait until data arrives.
+	 */
+	public void setReadTimeout(int ms)
+	{
+		mReadTimeout = Math.max(0, ms);
+	}
+
+	public int getReadTimeout()
+	{
+		return mReadTimeout;
+	}
+
+	/**
+	 * Set time without any received data after which the link is considered dead and disconnected.
+	 * Requires read timeout to be set, idle time is checked each time a read times out.
+	 * @param ms Timeout in milliseconds, 0 to disable.
+	 */
+	public void setIdleTimeout(int ms)
+	{
+		mIdleTimeout = Math.max(0, ms);
+	}
+
+	public int getIdleTimeout()
+	{
+		return mIdleTimeout;
+	}
+
+	@Override
+	public void connect() throws Exception
+	{
+		if (mConnected)
+			return;
+
+		String host = mHost;
+		int port = mPort;
+		if (mHost.toLowerCase(Locale.ENGLISH).equals("integrated_reader")) {
+			host = "localhost";
+			port = 6734;
+		}
+
+		InetSocketAddress addr = NurHostResolver.getShared().resolve(host, port, mConnectTimeout);
+		if (addr.isUnresolved())
+			throw new NurApiException("Error connecting to NUR device. Unknown host: " + mHost);
+
+		synchronized (mReadLock) {
+			mRxHead = 0;
+			mRxCount = 0;
+			mReadPaused = false;
+		}
+		int generation;
+		synchronized (mConnectLock) {
+			mConnectDone = false;
+			mConnectOk = false;
+			generation = ++mGeneration;
+		}
+
+		boolean done;
+		try {
+			mChannel = SocketChannel.open();
+			mChannel.configureBlocking(false);
+			done = mChannel.connect(addr);
+			mLoop = mHub.pickLoop();
+		}
+		catch (Exception e)
+		{
+			Log.d(TAG, "connect failed: " + e.getMessage());
+			closeChannel();
+			throw new NurApiException("Exception when connecting to NUR device.");
+		}
+
+		mClosed = false;
+		mRegistered.set(true);
+		mLoop.register(this, mChannel, done, generation);
+
+		synchronized (mConnectLock) {
+			long deadline = System.currentTimeMillis() + (mConnectTimeout > 0 ? mConnectTimeout : 30000);
+			while (!mConnectDone) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					break;
+				try {
+					mConnectLock.wait(left);
+				} catch (InterruptedException e) {
+					// Unregister from the hub so the aborted connect does not stay counted there
+					close();
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+			if (!mConnectOk) {
+				disconnect();
+				throw new NurApiException("Exception when connecting to NUR device.");
+			}
+		}
+
+		synchronized (mWriteLock) {
+			mPendingTx = NurDirectBufferPool.getShared().acquire();
+		}
+		mLastRxTime = System.currentTimeMillis();
+		mMetrics.reset();
+		mConnected = true;
+	}
+
+	@Override
+	public void disconnect()
+	{
+		Log.d(TAG, "disconnect() mConnected " + mConnected);
+		close();
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return mConnected;
+	}
+
+	/**
+	 * @return Throughput, error and latency counters of the current connection.
+	 */
+	public NurTransportMetrics getMetrics()
+	{
+		return mMetrics;
+	}
+
+	@Override
+	public int readData(byte[] buffer) throws IOException
+	{
+		if (!mConnected)
+			return -1;
+
+		int len;
+		synchronized (mReadLock) {
+			if (mRxCount == 0 && !mClosed) {
+				try {
+					mReadLock.wait(mReadTimeout);
+				} catch (InterruptedException e) {
+					return 0;
+				}
+			}
+			len = Math.min(mRxCount, buffer.length);
+		}
+
+		if (len == 0)
+		{
+			mMetrics.onReadTimeout();
+			if (!mClosed && mIdleTimeout > 0 && System.currentTimeMillis() - mLastRxTime >= mIdleTimeout)
+			{
+				Log.d(TAG, "readData idle timeout " + mIdleTimeout);
+				close();
+			}
+			return -1;
+		}
+
+		// Only this thread consumes; the I/O thread writes outside [head, head + count)
+		ByteBuffer ring = mRxRing.duplicate();
+		int head;
+		synchronized (mReadLock) {
+			head = mRxHead;
+		}
+		int first = Math.min(len, RX_RING_SIZE - head);
+		ring.limit(head + first).position(head);
+		ring.get(buffer, 0, first);
+		if (first < len) {
+			ring.limit(len - first).position(0);
+			ring.get(buffer, first, len - first);
+		}
+		synchronized (mReadLock) {
+			mRxHead = (head + len) % RX_RING_SIZE;
+			mRxCount -= len;
+		}
+		mMetrics.onRead(buffer, 0, len);
+
+		resumeReadIfPaused();
+		return len;
+	}
+
+	@Override
+	public int writeData(byte[] buffer, int len)
+	{
+		synchronized (mWriteLock)
+		{
+			mMetrics.onWrite(buffer, len);
+			try {
+				int offset = 0;
+				while (offset < len)
+				{
+					if (!mConnected || mPendingTx == null)
+						return -1;
+
+					// Earlier data still queued, wait for I/O thread to flush it
+					if (mPendingTx.position() > 0) {
+						mWriteLock.wait(100);
+						continue;
+					}
+
+					int chunk = Math.min(mPendingTx.capacity(), len - offset);
+					mPendingTx.put(buffer, offset, chunk);
+					mPendingTx.flip();
+					mChannel.write(mPendingTx);
+					mMetrics.onSegment();
+					mPendingTx.compact();
+					offset += chunk;
+
+					if (mPendingTx.position() > 0)
+						mLoop.setInterest(mKey, SelectionKey.OP_WRITE, true);
+				}
+			} catch (Exception e) {
+				Log.d(TAG, "writeData error: " + e.getMessage());
+				mMetrics.onWriteError(e.toString());
+				len = -1;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean disableAck()
+	{
+		return false;
+	}
+
+	private void resumeReadIfPaused()
+	{
+		synchronized (mReadLock) {
+			if (mReadPaused && RX_RING_SIZE - mRxCount >= NurDirectBufferPool.BUFFER_SIZE) {
+				mReadPaused = false;
+				mLoop.setInterest(mKey, SelectionKey.OP_READ, true);
+			}
+		}
+	}
+
+	private void close()
+	{
+		boolean wasOpen;
+		boolean wasConnected;
+		synchronized (mConnectLock) {
+			wasOpen = !mClosed;
+			wasConnected = mConnected;
+			mClosed = true;
+			mConnected = false;
+			mConnectDone = true;
+			mConnectLock.notifyAll();
+		}
+
+		// Closing the channel also cancels its selection key
+		closeChannel();
+		if (wasOpen && mRegistered.compareAndSet(true, false))
+			mLoop.release();
+
+		synchronized (mReadLock) {
+			mReadLock.notifyAll();
+		}
+		synchronized (mWriteLock) {
+			NurDirectBufferPool.getShared().release(mPendingTx);
+			mPendingTx = null;
+			mWriteLock.notifyAll();
+		}
+
+		NurTransportEvents ev = mEvents;
+		if (wasConnected && ev != null)
+			ev.onConnectionLost(this);
+	}
+
+	private void closeChannel()
+	{
+		try {
+			if (mChannel != null)
+				mChannel.close();
+		} catch (Exception ignored) { }
+	}
+
+	/* Called in the hub I/O thread */
+
+	/** @return false if the key belongs to an earlier, timed out connect. */
+	boolean onRegistered(SelectionKey key, int generation)
+	{
+		synchronized (mConnectLock) {
+			if (generation != mGeneration)
+				return false;
+		}
+		mKey = key;
+		return true;
+	}
+
+	void onConnectFinished(int generation, boolean ok)
+	{
+		synchronized (mConnectLock) {
+			// Late result of an earlier connect must not touch the current one
+			if (generation != mGeneration)
+				return;
+		}
+		onConnectFinished(ok);
+	}
+
+	private void onConnectFinished(boolean ok)
+	{
+		synchronized (mConnectLock) {
+			if (mClosed)
+				ok = false;
+			mConnectOk = ok;
+			mConnectDone = true;
+			mConnectLock.notifyAll();
+		}
+		if (!ok)
+			close();
+	}
+
+	void onConnectable(SelectionKey key) throws IOException
+	{
+		if (key.channel() != mChannel) {
+			key.cancel();
+			return;
+		}
+		if (mChannel.finishConnect()) {
+			mKey.interestOps(SelectionKey.OP_READ);
+			onConnectFinished(true);
+		}
+	}
+
+	void onReadable() throws IOException
+	{
+		int tail, free;
+		synchronized (mReadLock) {
+			free = RX_RING_SIZE - mRxCount;
+			if (free == 0) {
+				// Reader is behind, stop reading until it catches up
+				mReadPaused = true;
+				mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+				return;
+			}
+			tail = (mRxHead + mRxCount) % RX_RING_SIZE;
+		}
+
+		// Contiguous free space after tail, the rest is read on the next round
+		ByteBuffer ring = mRxRing.duplicate();
+		ring.limit(tail + Math.min(free, RX_RING_SIZE - tail)).position(tail);
+		int r = mChannel.read(ring);
+		if (r < 0) {
+			onClosed();
+			return;
+		}
+		if (r == 0)
+			return;
+
+		mLastRxTime = System.currentTimeMillis();
+		synchronized (mReadLock) {
+			mRxCount += r;
+			mReadLock.notifyAll();
+		}
+	}
+
+	void onWritable() throws IOException
+	{
+		synchronized (mWriteLock) {
+			if (mPendingTx != null) {
+				mPendingTx.flip();
+				mChannel.write(mPendingTx);
+				mMetrics.onSegment();
+				mPendingTx.compact();
+				if (mPendingTx.position() > 0)
+					return;
+			}
+			mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+			mWriteLock.notifyAll();
+		}
+	}
+
+	void onClosed()
+	{
+		Log.d(TAG, "connection closed " + mHost + ":" + mPort);
+		close();
+	}
+}
@@ -3,12 +3,18 @@ package com.nordicid.nurapi;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.util.Log;
 
@@ -23,12 +29,57 @@ public class NurApiSocketTransport implements NurApiTransport
 
 	private boolean isClient;
 	private Socket mSocket = null;
+	private SocketChannel mChannel = null;
+	private SocketChannel mPendingChannel = null;
+	private Selector mReadSelector = null;
+	private Selector mWriteSelector = null;
 	private InputStream mInput = null;
 	private OutputStream mOutput = null;
 	private String mHost = "";
 	private int mPort = 0;
 	private boolean mConnected = false;
 
+	/** Default connect timeout in milliseconds. */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/** Default time a write may wait for socket buffer space in milliseconds. */
+	public static final int DEFAULT_WRITE_TIMEOUT = 10000;
+
+	private int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int mReadTimeout = 0;
+	private int mIdleTimeout = 0;
+	private int mWriteTimeout = DEFAULT_WRITE_TIMEOUT;
+	private long mLastRxTime = 0;
+
+	private boolean mTcpNoDelay = false;
+	private boolean mKeepAlive = false;
+	private int mCoalesceWindow = 0;
+	private final ReentrantLock mTxLock = new ReentrantLock();
+	private final byte[] mTxBuf = new byte[4096];
+	private int mTxCount = 0;
+	private long mTxWindowEnd = 0;
+	private ScheduledFuture<?> mTxFlushTask = null;
+	private long mTxStallDeadline = 0;
+
+	/** Delay before a timer flush tries again when the writer holds the lock or the socket buffer is full. */
+	static final int FLUSH_RETRY_DELAY = 2;
+
+	private boolean mAutoTune = false;
+	private NurSocketTuner mTuner = null;
+	private byte[] mRxBuf = null;
+	private int mRxPos = 0;
+	private int mRxLen = 0;
+	private ByteBuffer mRxWrap = null;
+	private byte[] mCallerRxArray = null;
+	private ByteBuffer mCallerRxWrap = null;
+	private final ByteBuffer mTxWrap = ByteBuffer.wrap(mTxBuf);
+	private byte[] mCallerTxArray = null;
+	private ByteBuffer mCallerTxWrap = null;
+
+	private final NurTransportMetrics mMetrics = new NurTransportMetrics();
+
+	private volatile NurTransportEvents mEvents = null;
+
 	/**
 	 * Server uses this internally.
 	 * @param client Client socket that are accepted by the server.
@@ -49,7 +100,245 @@ public class NurApiSocketTransport implements NurApiTransport
 		mHost = host;
 		mPort = port;
 	}
-	
+
+	/**
+	 * Set listener for connection events.
+	 * @param ev Listener, null to remove.
+	 */
+	public void setTransportEvents(NurTransportEvents ev)
+	{
+		mEvents = ev;
+	}
+
+	/**
+	 * Set timeout for establishing the TCP connection.
+	 * @param ms Timeout in milliseconds, 0 to wait for the OS default.
+	 */
+	public void setConnectTimeout(int ms)
+	{
+		mConnectTimeout = Math.max(0, ms);
+	}
+
+	public int getConnectTimeout()
+	{
+		return mConnectTimeout;
+	}
+
+	/**
+	 * Set maximum time a single read blocks. When it expires readData() returns 0.
+	 * @param ms Timeout in milliseconds, 0 to block until data arrives.
+	 */
+	public void setReadTimeout(int ms)
+	{
+		mReadTimeout = Math.max(0, ms);
+	}
+
+	public int getReadTimeout()
+	{
+		return mReadTimeout;
+	}
+
+	/**
+	 * Set maximum time a write waits for the peer to make room in the socket send buffer.
+	 * When it expires the write fails.
+	 * @param ms Timeout in milliseconds, at least 1.
+	 */
+	public void setWriteTimeout(int ms)
+	{
+		mWriteTimeout = Math.max(1, ms);
+	}
+
+	public int getWriteTimeout()
+	{
+		return mWriteTimeout;
+	}
+
+	/**
+	 * Set time without any received data after which the link is considered dead and disconnected.
+	 * Requires read timeout to be set, idle time is checked each time a read times out.
+	 * @param ms Timeout in milliseconds, 0 to disable.
+	 */
+	public void setIdleTimeout(int ms)
+	{
+		mIdleTimeout = Math.max(0, ms);
+	}
+
+	public int getIdleTimeout()
+	{
+		return mIdleTimeout;
+	}
+
+	/**
+	 * Enable or disable Nagle's algorithm (TCP_NODELAY). Applied on next connect.
+	 * With write coalescing enabled Nagle only adds latency, so it should then be disabled.
+	 * @param noDelay true to send segments without delay.
+	 */
+	public void setTcpNoDelay(boolean noDelay)
+	{
+		mTcpNoDelay = noDelay;
+	}
+
+	public boolean getTcpNoDelay()
+	{
+		return mTcpNoDelay;
+	}
+
+	/**
+	 * Enable or disable TCP keepalive (SO_KEEPALIVE). Applied on next connect.
+	 * Keepalive timing is set by the OS; use the auto connect heartbeat for bounded detection time.
+	 * @param keepAlive true to enable keepalive probes.
+	 */
+	public void setKeepAlive(boolean keepAlive)
+	{
+		mKeepAlive = keepAlive;
+	}
+
+	public boolean getKeepAlive()
+	{
+		return mKeepAlive;
+	}
+
+	/**
+	 * Enable or disable adaptive buffer sizing. Applied on next connect.
+	 * When enabled, inbound and outbound rate and command round trip time are measured and
+	 * SO_RCVBUF, SO_SNDBUF and the read chunk size follow the measured bandwidth-delay product.
+	 * The tuned receive buffer is remembered per address and set before the next connect.
+	 * @param autoTune true to enable.
+	 */
+	public void setAutoTune(boolean autoTune)
+	{
+		mAutoTune = autoTune;
+	}
+
+	public boolean getAutoTune()
+	{
+		return mAutoTune;
+	}
+
+	/**
+	 * @return Smoothed inbound rate in bytes per second, 0 if auto tune is disabled.
+	 */
+	public double getReceiveRate()
+	{
+		NurSocketTuner tuner = mTuner;
+		return tuner == null ? 0 : tuner.getRate();
+	}
+
+	/**
+	 * @return Smoothed command round trip time in milliseconds, 0 if auto tune is disabled.
+	 */
+	public double getRoundTripTime()
+	{
+		NurSocketTuner tuner = mTuner;
+		return tuner == null ? 0 : tuner.getRtt();
+	}
+
+	/**
+	 * @return Current read chunk size in bytes.
+	 */
+	public int getReadChunkSize()
+	{
+		NurSocketTuner tuner = mTuner;
+		return tuner == null ? 0 : tuner.getReadChunk();
+	}
+
+	/**
+	 * Set write coalescing window. The first write on an idle link is sent right away,
+	 * writes that follow within the window are collected and sent together when the window ends,
+	 * when the buffer fills up or when {@link #flush()} is called.
+	 * @param ms Window in milliseconds, 0 to send every write immediately.
+	 */
+	public void setWriteCoalesceWindow(int ms)
+	{
+		flush();
+		mCoalesceWindow = Math.max(0, ms);
+	}
+
+	public int getWriteCoalesceWindow()
+	{
+		return mCoalesceWindow;
+	}
+
+	/**
+	 * Send all coalesced data now.
+	 */
+	public void flush()
+	{
+		boolean failed = false;
+		mTxLock.lock();
+		try {
+			flushLocked();
+		} catch (Exception e) {
+			Log.d(TAG, "flush error: " + e.getMessage());
+			mMetrics.onWriteError(e.toString());
+			failed = true;
+		} finally {
+			mTxLock.unlock();
+		}
+		if (failed)
+			flushFailed();
+	}
+
+	/**
+	 * @return Throughput, error and latency counters of the current connection.
+	 */
+	public NurTransportMetrics getMetrics()
+	{
+		return mMetrics;
+	}
+
+	/**
+	 * @return Number of writeData() calls since connect.
+	 */
+	public long getWritePacketCount()
+	{
+		return mMetrics.getPacketsOut();
+	}
+
+	/**
+	 * @return Number of socket writes since connect. With TCP_NODELAY each write is normally one TCP segment.
+	 */
+	public long getWriteSegmentCount()
+	{
+		return mMetrics.getSegmentsOut();
+	}
+
+	/**
+	 * @return Average number of packets sent per socket write, 0 if nothing sent.
+	 */
+	public double getPacketsPerSegment()
+	{
+		long segments = mMetrics.getSegmentsOut();
+		return segments == 0 ? 0 : (double) mMetrics.getPacketsOut() / segments;
+	}
+
+	/**
+	 * Use an already connected channel on the next {@link #connect()} instead of opening a new connection,
+	 * e.g. the winner of a {@link NurConnectRace}. Socket buffer auto tuning does not apply to it.
+	 * @param ch Connected channel, owned by the transport after the call.
+	 */
+	synchronized void setConnectedChannel(SocketChannel ch)
+	{
+		closePendingChannel();
+		mPendingChannel = ch;
+	}
+
+	private synchronized SocketChannel takePendingChannel()
+	{
+		SocketChannel ch = mPendingChannel;
+		mPendingChannel = null;
+		return ch;
+	}
+
+	private synchronized void closePendingChannel()
+	{
+		try {
+			if (mPendingChannel != null)
+				mPendingChannel.close();
+		} catch (Exception ignored) { }
+		mPendingChannel = null;
+	}
+
 	@Override
 	public void connect() throws Exception
 	{
@@ -65,35 +354,73 @@ public class NurApiSocketTransport implements NurApiTransport
 					host = "localhost";
 					port = 6734;
 				}
-				mSocket = new Socket();
-				mSocket.connect(new InetSocketAddress(host, port));
+				SocketChannel pending = takePendingChannel();
+				if (pending != null && pending.isConnected()) {
+					mChannel = pending;
+					mSocket = mChannel.socket();
+					mTuner = mAutoTune ? new NurSocketTuner(host, port) : null;
+				} else {
+					if (pending != null)
+						pending.close();
+					// Channel backed socket so that reads can wait with a selector instead of SO_TIMEOUT exceptions
+					mChannel = SocketChannel.open();
+					mSocket = mChannel.socket();
+					mTuner = mAutoTune ? new NurSocketTuner(host, port) : null;
+					if (mTuner != null && mTuner.getInitialRcvBuf() > 0) {
+						// Before connect so that the window scale is negotiated for it
+						mSocket.setReceiveBufferSize(mTuner.getInitialRcvBuf());
+					}
+					mSocket.connect(NurHostResolver.getShared().resolve(host, port, mConnectTimeout), mConnectTimeout);
+				}
 
-				//mSocket.setSoTimeout(1000);
-				//mSocket.setKeepAlive(true);// NEW
-				//mSocket.setTcpNoDelay(false);// NEW (Nagle)
-				mOutput = mSocket.getOutputStream();
-				mInput = mSocket.getInputStream();
+				mSocket.setKeepAlive(mKeepAlive);
+				mSocket.setTcpNoDelay(mTcpNoDelay);
+				mChannel.configureBlocking(false);
+				mReadSelector = Selector.open();
+				mChannel.register(mReadSelector, SelectionKey.OP_READ);
+				mWriteSelector = Selector.open();
+				mChannel.register(mWriteSelector, SelectionKey.OP_WRITE);
+				mInput = null;
+				mOutput = null;
 			}
 			catch (UnknownHostException e) 
-			{				 
-				e.printStackTrace();
+			{
+				closeChannel();
 				throw new NurApiException("Error connecting to NUR device. Unknown host: " + mHost);
 			}
+			catch (SocketTimeoutException e)
+			{
+				closeChannel();
+				throw new NurApiException("Timeout when connecting to NUR device.");
+			}
 			catch (Exception e) 
 			{
-				e.printStackTrace();				
+				Log.d(TAG, "connect failed: " + e);
+				closeChannel();
 				throw new NurApiException("Exception when connecting to NUR device.");
 			}
 		}
 		else //host connection
 		{
 			try {
+				mSocket.setSoTimeout(mReadTimeout);
+				mSocket.setTcpNoDelay(mTcpNoDelay);
 				mOutput = mSocket.getOutputStream();
 				mInput = mSocket.getInputStream();
 			} catch (Exception e) {
 				throw new NurApiException("Error while opening I/O-streams between the client and the server.");
 			}
 		}
+		mLastRxTime = System.currentTimeMillis();
+		mRxPos = mRxLen = 0;
+		mMetrics.reset();
+		mTxLock.lock();
+		try {
+			mTxCount = 0;
+			mTxWindowEnd = 0;
+		} finally {
+			mTxLock.unlock();
+		}
 		mConnected = true;
 	}
 
@@ -102,6 +429,7 @@ public class NurApiSocketTransport implements NurApiTransport
 	{
 		Log.d(TAG, "disconnect() mConnected " + mConnected);
 
+		// Close first: a writer blocked on a stalled peer holds mTxLock until its socket or selector closes
         try{
         	if(mInput != null) 
         	{
@@ -128,8 +456,45 @@ public class NurApiSocketTransport implements NurApiTransport
 			}
 		}
 		catch(Exception ignored) {}
+		closeChannel();
+		closePendingChannel();
+
+		mTxLock.lock();
+		try {
+			if (mTxFlushTask != null) {
+				mTxFlushTask.cancel(false);
+				mTxFlushTask = null;
+			}
+			mTxCount = 0;
+		} finally {
+			mTxLock.unlock();
+		}
 
-		mConnected = false;
+		boolean wasConnected;
+		synchronized (this) {
+			wasConnected = mConnected;
+			mConnected = false;
+		}
+		NurTransportEvents ev = mEvents;
+		if (wasConnected && ev != null)
+			ev.onConnectionLost(this);
+	}
+
+	/** Close channel and wake up and close its selectors. */
+	private void closeChannel()
+	{
+		try {
+			if (mChannel != null)
+				mChannel.close();
+		} catch (Exception ignored) { }
+		try {
+			if (mReadSelector != null)
+				mReadSelector.close();
+		} catch (Exception ignored) { }
+		try {
+			if (mWriteSelector != null)
+				mWriteSelector.close();
+		} catch (Exception ignored) { }
 	}
 
 	@Override
@@ -138,51 +503,311 @@ public class NurApiSocketTransport implements NurApiTransport
 		return (mConnected);
 	}
 	
+	/**
+	 * Read received data. Timeouts and errors are reported with the return value, not exceptions,
+	 * and the steady state path does not allocate.
+	 * @return Number of bytes read, 0 if the read timeout expired, -1 on end of stream or error.
+	 */
 	@Override
 	public int readData(byte[] buffer) throws IOException
 	{
-		int read = 0;
-		if(mConnected)
+		if (!mConnected)
+			return 0;
+
+		// Serve rest of the previous large chunk first
+		if (mRxPos < mRxLen)
+			return takeChunk(buffer);
+
+		NurSocketTuner tuner = mTuner;
+		boolean chunked = tuner != null && tuner.getReadChunk() > buffer.length;
+		if (chunked && mRxBuf == null) {
+			mRxBuf = new byte[NurSocketTuner.MAX_CHUNK];
+			mRxWrap = ByteBuffer.wrap(mRxBuf);
+		}
+
+		int r;
+		SocketChannel ch = mChannel;
+		if (ch != null)
 		{
-			if (mInput == null)
-				return -1;
-			
+			ByteBuffer bb;
+			if (chunked) {
+				bb = mRxWrap;
+				bb.clear();
+				bb.limit(tuner.getReadChunk());
+			} else {
+				if (mCallerRxArray != buffer) {
+					mCallerRxArray = buffer;
+					mCallerRxWrap = ByteBuffer.wrap(buffer);
+				}
+				bb = mCallerRxWrap;
+				bb.clear();
+			}
+
 			try {
-				int r = mInput.read(buffer, 0, buffer.length);
-				if (r < 0)
-				{
-					//System.out.println("Socket gracefull exit");
-					disconnect();
-					return -1;
+				r = ch.read(bb);
+				if (r == 0) {
+					mReadSelector.select(mReadTimeout);
+					mReadSelector.selectedKeys().clear();
+					r = ch.read(bb);
 				}
-				read += r;
-			} 
-			catch (SocketTimeoutException sto) {
+			} catch (IOException | ClosedSelectorException e) {
+				return readFailed(e);
+			}
+		}
+		else
+		{
+			// Server side socket
+			if (mInput == null)
 				return -1;
-			}		
-			catch (SocketException se) {
-				se.printStackTrace();
+			try {
+				r = chunked ? mInput.read(mRxBuf, 0, tuner.getReadChunk()) : mInput.read(buffer, 0, buffer.length);
+			} catch (SocketTimeoutException sto) {
+				r = 0;
+			} catch (IOException e) {
+				return readFailed(e);
+			}
+		}
+
+		if (r < 0)
+		{
+			// Graceful close by the peer
+			disconnect();
+			return -1;
+		}
+		if (r == 0)
+		{
+			mMetrics.onReadTimeout();
+			if (mIdleTimeout > 0 && System.currentTimeMillis() - mLastRxTime >= mIdleTimeout)
+			{
+				Log.d(TAG, "readData idle timeout " + mIdleTimeout);
 				disconnect();
 				return -1;
 			}
+			return 0;
+		}
+
+		mLastRxTime = System.currentTimeMillis();
+		mMetrics.onRead(chunked ? mRxBuf : buffer, 0, r);
+		if (tuner != null && tuner.onReceived(r, mLastRxTime))
+			applyBufferSizes(tuner);
+
+		if (chunked) {
+			mRxPos = 0;
+			mRxLen = r;
+			return takeChunk(buffer);
+		}
+		return r;
+	}
+
+	private int readFailed(Exception e)
+	{
+		// Errors caused by our own disconnect are not counted
+		if (mConnected) {
+			mMetrics.onReadError(e.toString());
+			Log.d(TAG, "readData error: " + e);
+			disconnect();
+		}
+		return -1;
+	}
+
+	/** Copy from the internal read chunk to the caller buffer. */
+	private int takeChunk(byte[] buffer)
+	{
+		int n = Math.min(buffer.length, mRxLen - mRxPos);
+		System.arraycopy(mRxBuf, mRxPos, buffer, 0, n);
+		mRxPos += n;
+		return n;
+	}
+
+	private void applyBufferSizes(NurSocketTuner tuner)
+	{
+		try {
+			mSocket.setReceiveBufferSize(tuner.getRcvBuf());
+			mSocket.setSendBufferSize(tuner.getSndBuf());
+			Log.d(TAG, String.format(Locale.ENGLISH, "tuned rate %.0f B/s rtt %.1f ms rcvbuf %d sndbuf %d chunk %d",
+					tuner.getRate(), tuner.getRtt(), tuner.getRcvBuf(), tuner.getSndBuf(), tuner.getReadChunk()));
+		} catch (Exception e) {
+			Log.d(TAG, "buffer tuning failed: " + e.getMessage());
 		}
-		return read;
 	}
 
 	@Override
 	public int writeData(byte[] buffer, int len) {
-		if (mOutput == null)
+		if (mOutput == null && mChannel == null)
 			return -1;
 
-		try {			
-			mOutput.write(buffer, 0, len);			
-		} catch (Exception e) {
-			e.printStackTrace();
-			len = -1;
+		boolean failed = false;
+		NurSocketTuner tuner = mTuner;
+		if (tuner != null)
+			tuner.onSent(len, System.currentTimeMillis());
+
+		mTxLock.lock();
+		try {
+			try {
+				mMetrics.onWrite(buffer, len);
+				long now = System.nanoTime();
+
+				// Server side stream sockets can not be flushed without blocking, no coalescing for them
+				if (mCoalesceWindow == 0 || mChannel == null || (mTxCount == 0 && now - mTxWindowEnd >= 0) || len > mTxBuf.length)
+				{
+					// Idle link or nothing to coalesce with; send right away
+					flushLocked();
+					writeFully(buffer, len);
+					mMetrics.onSegment();
+					mTxWindowEnd = now + TimeUnit.MILLISECONDS.toNanos(mCoalesceWindow);
+					return len;
+				}
+
+				if (mTxCount + len > mTxBuf.length)
+					flushLocked();
+
+				System.arraycopy(buffer, 0, mTxBuf, mTxCount, len);
+				mTxCount += len;
+
+				if (mTxFlushTask == null) {
+					long delay = Math.max(0, mTxWindowEnd - now);
+					mTxFlushTask = NurTransportScheduler.get().schedule(this::onFlushTimer, delay, TimeUnit.NANOSECONDS);
+				}
+			} catch (Exception e) {
+				mMetrics.onWriteError(e.toString());
+				Log.d(TAG, "writeData error: " + e);
+				failed = mTxCount > 0;
+				len = -1;
+			}
+		} finally {
+			mTxLock.unlock();
 		}
+		// Coalesced bytes of earlier writes can not be delivered anymore
+		if (failed)
+			flushFailed();
 		return len;
 	}
 
+	/**
+	 * Coalesce window end, runs on the shared scheduler thread and must not block.
+	 * Writes what the socket takes now and tries again shortly for the rest.
+	 */
+	private void onFlushTimer()
+	{
+		if (!mTxLock.tryLock()) {
+			// Writer is busy; it may be blocked on a full socket, do not wait for it
+			NurTransportScheduler.get().schedule(this::onFlushTimer, FLUSH_RETRY_DELAY, TimeUnit.MILLISECONDS);
+			return;
+		}
+		boolean failed = false;
+		try {
+			mTxFlushTask = null;
+			SocketChannel ch = mChannel;
+			if (mTxCount == 0 || ch == null)
+				return;
+
+			mTxWrap.clear();
+			mTxWrap.limit(mTxCount);
+			int n = ch.write(mTxWrap);
+			if (n > 0)
+				mMetrics.onSegment();
+			if (n == mTxCount) {
+				mTxCount = 0;
+				mTxStallDeadline = 0;
+				mTxWindowEnd = System.nanoTime();
+				return;
+			}
+
+			System.arraycopy(mTxBuf, n, mTxBuf, 0, mTxCount - n);
+			mTxCount -= n;
+			long now = System.currentTimeMillis();
+			if (mTxStallDeadline == 0 || n > 0)
+				mTxStallDeadline = now + mWriteTimeout;
+			if (now >= mTxStallDeadline) {
+				Log.d(TAG, "flush timeout, " + mTxCount + " bytes not sent");
+				mMetrics.onWriteError("flush timeout");
+				mTxCount = 0;
+				mTxStallDeadline = 0;
+				failed = true;
+				return;
+			}
+			mTxFlushTask = NurTransportScheduler.get().schedule(this::onFlushTimer, FLUSH_RETRY_DELAY, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			Log.d(TAG, "flush error: " + e.getMessage());
+			mMetrics.onWriteError(e.toString());
+			mTxCount = 0;
+			failed = true;
+		} finally {
+			mTxLock.unlock();
+			if (failed)
+				flushFailed();
+		}
+	}
+
+	/**
+	 * Coalesced data was already reported written to NurApi, losing it leaves NurApi waiting
+	 * for responses that never come. Treat it as a broken link so the connection lost event
+	 * starts a reconnect.
+	 */
+	private void flushFailed()
+	{
+		if (mConnected) {
+			Log.d(TAG, "coalesced data lost, disconnecting");
+			disconnect();
+		}
+	}
+
+	/** Write out coalesced data, caller holds mTxLock. */
+	private void flushLocked() throws IOException
+	{
+		if (mTxFlushTask != null) {
+			mTxFlushTask.cancel(false);
+			mTxFlushTask = null;
+		}
+		if (mTxCount == 0 || (mOutput == null && mChannel == null))
+			return;
+
+		writeFully(mTxBuf, mTxCount);
+		mMetrics.onSegment();
+		mTxCount = 0;
+		mTxStallDeadline = 0;
+		mTxWindowEnd = System.nanoTime();
+	}
+
+	/** Write all bytes, waiting for socket buffer space if needed. Caller holds mTxLock. */
+	private void writeFully(byte[] buffer, int len) throws IOException
+	{
+		SocketChannel ch = mChannel;
+		if (ch == null) {
+			mOutput.write(buffer, 0, len);
+			return;
+		}
+
+		ByteBuffer bb;
+		if (buffer == mTxBuf) {
+			bb = mTxWrap;
+		} else {
+			if (mCallerTxArray != buffer) {
+				mCallerTxArray = buffer;
+				mCallerTxWrap = ByteBuffer.wrap(buffer);
+			}
+			bb = mCallerTxWrap;
+		}
+		bb.clear();
+		bb.limit(len);
+
+		long deadline = System.currentTimeMillis() + mWriteTimeout;
+		while (bb.hasRemaining())
+		{
+			if (ch.write(bb) == 0) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					throw new IOException("Write timeout " + mWriteTimeout + " ms");
+				try {
+					mWriteSelector.select(left);
+					mWriteSelector.selectedKeys().clear();
+				} catch (ClosedSelectorException e) {
+					throw new IOException("Transport disconnected");
+				}
+			}
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -26,8 +26,20 @@ import android.hardware.usb.UsbManager;
 //import android.util.Log;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Auto connect transport for USB readers.
+ * <p>
+ * Address "USB" connects to the first Nordic ID reader found. To use several USB readers at once,
+ * give each auto connect the serial number or device name of its reader, see {@link #getDeviceAddress(UsbDevice)}.
+ * Serial number can be read only once the app has permission to the device; device name changes when the reader is replugged.
+ * </p>
+ */
 public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
     static final String TAG = "NurApiUsbAutoConnect";
 
@@ -55,6 +67,7 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
     private final Context mContext;
     private final UsbManager mUsbManager;
     private UsbDevice mUsbDevice = null;
+    private String mAddress = "";
     private static final String ACTION_USB_PERMISSION = "com.nordicid.nurapi.USB_PERMISSION";
     private boolean mReceiverRegistered = false;
     private final PendingIntent mPermissionIntent;
@@ -64,6 +77,26 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
 
     private boolean mEnabled = false;
 
+    /**
+     * Address that matches any Nordic ID USB reader
+     */
+    public static final String ANY_DEVICE = "USB";
+
+    private int mQueueDepth = 0;
+
+    /**
+     * Connect attempts right after attach before waiting for the next attach or permission event
+     */
+    private static final int CONNECT_RETRIES = 3;
+
+    /**
+     * First retry delay in milliseconds, doubled on every retry
+     */
+    private static final int CONNECT_RETRY_DELAY = 50;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mConnectAttempt = 0;
+
     void registerReceiver(String action) {
         if (action.isEmpty()) {
             if (mReceiverRegistered) {
@@ -104,7 +137,24 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
         this.mApi = na;
         this.mUsbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
 
-        mPermissionIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), PendingIntent.FLAG_IMMUTABLE);
+        // UsbManager fills in the device and grant result, so the intent must be mutable; explicit package keeps it private
+        Intent permission = new Intent(ACTION_USB_PERMISSION);
+        permission.setPackage(mContext.getPackageName());
+        int flags = Build.VERSION.SDK_INT >= 31 ? PendingIntent.FLAG_MUTABLE : 0;
+        mPermissionIntent = PendingIntent.getBroadcast(mContext, 0, permission, flags);
+    }
+
+    /**
+     * Set number of asynchronous IN transfers the USB transport keeps queued. Applied on next connect.
+     * @param depth Queue depth, 0 for synchronous reads.
+     * @see NurApiUsbTransport#setQueueDepth(int)
+     */
+    public void setQueueDepth(int depth) {
+        mQueueDepth = Math.max(0, depth);
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth;
     }
 
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
@@ -115,37 +165,58 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
                 synchronized (this) {
                     Log.d(TAG, "ACTION_USB_DEVICE_ATTACHED " + intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false));
                     UsbDevice intentUsbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-                    // If the usb device is not a Nordic one do nothing
-                    if (!checkIsNurDevice(intentUsbDevice)){
+                    // If the usb device is not a Nordic one or is another reader's, do nothing
+                    if (!checkIsNurDevice(intentUsbDevice)) {
+                        return;
+                    }
+                    if (!matchesAddress(intentUsbDevice, mAddress)) {
+                        // Serial number is readable only with permission; ask for it to find out if this is our reader
+                        if (isUnidentified(intentUsbDevice))
+                            requestSerialPermission(intentUsbDevice);
                         return;
                     }
                     mUsbDevice = intentUsbDevice;
+                    registerReceiver(UsbManager.ACTION_USB_DEVICE_DETACHED);
 
-                    if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        if (mUsbDevice != null) {
-                            NurApiUsbAutoConnect.this.setAddress(getAddress());
-                        }
-                    } else {
-                        Log.d(TAG, "ACTION_USB_DEVICE_ATTACHED permission denied for device " + mUsbDevice);
-                        Log.d(TAG, "FORCE CONNECTION to" + getAddress());
-                        NurApiUsbAutoConnect.this.setAddress(getAddress());
-                    }
+                    // Connect the attached device directly, without rescanning the device list.
+                    // Without permission connect() requests it right away.
+                    if (!mUsbManager.hasPermission(mUsbDevice))
+                        Log.d(TAG, "ACTION_USB_DEVICE_ATTACHED no permission for device " + mUsbDevice);
+                    startConnect();
                 }
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
                 UsbDevice intentUsbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                 // Check the disconnected device is the one that we have connected and no other USB device
-                // We check that the vendor ID matches with one of the Nur IDs and the product ID also matches
-                if (checkIsNurDevice(intentUsbDevice)) {
+                if (isOwnDevice(intentUsbDevice)) {
                     Log.d(TAG, "ACTION_USB_DEVICE_DETACHED");
+                    // Reads of a detached device would only end at their timeout
+                    NurApiTransport tr = mApi.getTransport();
+                    if (tr instanceof NurApiUsbTransport)
+                        ((NurApiUsbTransport) tr).cancelRead();
                     disconnect();
                 }
 
             } else if (ACTION_USB_PERMISSION.equals(action)) {
+                // Only one permission dialog is shown at a time, so any answer ends our request
                 mRequestingPermission = false;
-                Log.d(TAG, "ACTION_USB_PERMISSION " + intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false));
 
-                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false))
-                    NurApiUsbAutoConnect.this.setAddress(getAddress());
+                // Permission broadcast reaches every USB auto connect; without the device extra assume it is our pending request
+                UsbDevice intentUsbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (intentUsbDevice != null && !isOwnDevice(intentUsbDevice))
+                    return;
+                if (mUsbDevice == null)
+                    return;
+                boolean granted = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false) || mUsbManager.hasPermission(mUsbDevice);
+                Log.d(TAG, "ACTION_USB_PERMISSION " + granted);
+
+                if (granted) {
+                    if (matchesAddress(mUsbDevice, mAddress)) {
+                        startConnect();
+                    } else {
+                        // Serial did not match, look for our reader again
+                        NurApiUsbAutoConnect.this.setAddress(getAddress());
+                    }
+                }
             }
         }
     };
@@ -160,7 +231,100 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
                 && (usbDevice.getProductId() == NUR_PRODUCT_ID_1 || usbDevice.getProductId() == NUR_PRODUCT_ID_2);
     }
 
+    private static boolean checkIsNurVendor(UsbDevice usbDevice) {
+        return usbDevice.getVendorId() == NUR_VENDOR_ID_1 || usbDevice.getVendorId() == NUR_VENDOR_ID_2;
+    }
+
+    /**
+     * @return True if the device may be ours but its serial number cannot be read yet
+     */
+    private boolean isUnidentified(UsbDevice usbDevice) {
+        return getDeviceSerial(usbDevice) == null && !mUsbManager.hasPermission(usbDevice);
+    }
+
+    /**
+     * Ask permission to a reader only to read its serial number. Grant result continues in the permission broadcast.
+     */
+    private void requestSerialPermission(UsbDevice usbDevice) {
+        if (mRequestingPermission)
+            return;
+        Log.d(TAG, "requesting permission to read serial of " + usbDevice.getDeviceName());
+        mUsbDevice = usbDevice;
+        mRequestingPermission = true;
+        mUsbManager.requestPermission(usbDevice, mPermissionIntent);
+    }
+
+    private boolean isOwnDevice(UsbDevice usbDevice) {
+        UsbDevice own = mUsbDevice;
+        return usbDevice != null && own != null && own.getDeviceName().equals(usbDevice.getDeviceName());
+    }
+
+    /**
+     * Get serial number of USB device.
+     * @param usbDevice Device
+     * @return Serial number, or null if the device has none or it can not be read without permission
+     */
+    public static String getDeviceSerial(UsbDevice usbDevice) {
+        try {
+            String serial = usbDevice.getSerialNumber();
+            return (serial == null || serial.isEmpty()) ? null : serial;
+        } catch (SecurityException e) {
+            // API 29+ requires permission to the device
+            return null;
+        }
+    }
+
+    /**
+     * Get address that selects this device in {@link #setAddress(String)} and "type=USB" device specs.
+     * @param usbDevice Device
+     * @return Serial number if readable, otherwise device name (e.g. "/dev/bus/usb/001/004")
+     */
+    public static String getDeviceAddress(UsbDevice usbDevice) {
+        String serial = getDeviceSerial(usbDevice);
+        return serial != null ? serial : usbDevice.getDeviceName();
+    }
+
+    /**
+     * Check if device is selected by address.
+     * @param usbDevice Device
+     * @param addr {@link #ANY_DEVICE}, serial number or device name
+     * @return True if address matches the device
+     */
+    public static boolean matchesAddress(UsbDevice usbDevice, String addr) {
+        if (addr == null || addr.isEmpty() || addr.equalsIgnoreCase(ANY_DEVICE))
+            return true;
+        if (addr.equals(usbDevice.getDeviceName()))
+            return true;
+        String serial = getDeviceSerial(usbDevice);
+        return serial != null && serial.equals(addr);
+    }
+
+    /**
+     * List attached Nordic ID USB readers.
+     * @param manager USB manager
+     * @return Attached readers
+     */
+    public static List<UsbDevice> getNurDevices(UsbManager manager) {
+        List<UsbDevice> ret = new ArrayList<>();
+        for (UsbDevice device : manager.getDeviceList().values()) {
+            if (checkIsNurVendor(device))
+                ret.add(device);
+        }
+        return ret;
+    }
+
+    private void startConnect() {
+        mHandler.removeCallbacks(mConnectRunnable);
+        mConnectAttempt = 0;
+        mHandler.post(mConnectRunnable);
+    }
+
+    private final Runnable mConnectRunnable = this::connect;
+
     private void connect() {
+        if (mApi.isConnected())
+            return;
+
         if (mUsbDevice != null && mUsbManager.hasPermission(mUsbDevice)) {
             try {
                 mApi.setTransport(null);
@@ -168,13 +332,20 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
                 e.printStackTrace();
             }
             NurApiUsbTransport tr = new NurApiUsbTransport(mUsbManager, mUsbDevice);
+            tr.setQueueDepth(mQueueDepth);
             try {
                 mApi.setTransport(tr);
                 mApi.connect();
 
                 registerReceiver(UsbManager.ACTION_USB_DEVICE_DETACHED);
             } catch (Exception ex) {
-                ex.printStackTrace();
+                // Device node may not be ready right after attach
+                if (++mConnectAttempt < CONNECT_RETRIES) {
+                    Log.d(TAG, "connect failed, retry " + mConnectAttempt + ": " + ex.getMessage());
+                    mHandler.postDelayed(mConnectRunnable, (long) CONNECT_RETRY_DELAY << (mConnectAttempt - 1));
+                } else {
+                    ex.printStackTrace();
+                }
             }
         } else if (mUsbDevice != null && !mUsbManager.hasPermission(mUsbDevice)) {
             mRequestingPermission = true;
@@ -215,23 +386,27 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
         Log.d(TAG, "setAddress " + addr);
 
         mEnabled = !addr.isEmpty();
+        mAddress = addr;
 
         this.mUsbDevice = null;
-        for (UsbDevice device : mUsbManager.getDeviceList().values()) {
-            if (device.getVendorId() == 1254 || device.getVendorId() == 3589) {
+        UsbDevice unidentified = null;
+        for (UsbDevice device : getNurDevices(mUsbManager)) {
+            if (matchesAddress(device, addr)) {
                 this.mUsbDevice = device;
                 break;
             }
+            if (unidentified == null && checkIsNurDevice(device) && isUnidentified(device))
+                unidentified = device;
         }
 
         if (mUsbDevice == null) {
             registerReceiver(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+            // Already plugged reader with unknown serial (API 29+) may be ours, same as on attach
+            if (mEnabled && unidentified != null)
+                requestSerialPermission(unidentified);
         } else {
             registerReceiver(UsbManager.ACTION_USB_DEVICE_DETACHED);
-        }
-
-        if (mUsbDevice != null) {
-            new Handler().postDelayed(this::connect, 200);
+            startConnect();
         }
     }
 
@@ -241,6 +416,7 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
 
     @Override
     public void onStop() {
+        mHandler.removeCallbacks(mConnectRunnable);
         if (mApi.isConnected()) {
             try {
                 mApi.disconnect();
@@ -263,13 +439,13 @@ public class NurApiUsbAutoConnect implements NurApiAutoConnectTransport {
 
     @Override
     public String getAddress() {
-        return mEnabled ? "USB" : "";
+        return mEnabled ? mAddress : "";
     }
 
     @Override
     public String getDetails() {
         if (mApi.isConnected())
-            return "Connected to USB";
+            return ANY_DEVICE.equalsIgnoreCase(mAddress) ? "Connected to USB" : "Connected to USB " + mAddress;
         else if (!mEnabled)
             return "Disabled";
 
@@ -17,12 +17,21 @@
 
 package com.nordicid.nurapi;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -38,12 +47,149 @@ public class NurApiUsbTransport implements NurApiTransport
 	private final UsbManager mManager;
 	private final UsbDevice mDevice;
 	private UsbDeviceConnection mDeviceConnection = null;
+	private UsbIo mIo = null;
 	private UsbInterface mInterface = null;
 	
-	private static UsbEndpoint mInput = null;
-	private static UsbEndpoint mOutput = null;
+	private UsbEndpoint mInput = null;
+	private UsbEndpoint mOutput = null;
 	
 	private final int TRANSFER_TIMEOUT = 2500;
+
+	/** Default read timeout while data is flowing in milliseconds. */
+	public static final int DEFAULT_MIN_READ_TIMEOUT = 100;
+
+	/** Default read timeout when idle in milliseconds. */
+	public static final int DEFAULT_MAX_READ_TIMEOUT = 1000;
+
+	/** Failed transfers that return well before the timeout in a row before the device is considered gone. */
+	static final int FAST_FAIL_LIMIT = 3;
+
+	private int mMinReadTimeout = DEFAULT_MIN_READ_TIMEOUT;
+	private int mMaxReadTimeout = DEFAULT_MAX_READ_TIMEOUT;
+	private int mReadTimeout = DEFAULT_MIN_READ_TIMEOUT;
+	private int mFastFails = 0;
+	private volatile boolean mCancelRead = false;
+
+	private final NurTransportMetrics mMetrics = new NurTransportMetrics();
+
+	/** Default number of IN transfers kept queued in queued read mode. */
+	public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+	/** Size of one queued IN transfer, a multiple of any bulk max packet size. */
+	static final int QUEUED_TRANSFER_SIZE = 16 * 1024;
+
+	private int mQueueDepth = 0;
+	private UsbRequest[] mRequests = null;
+	private Thread mReapThread = null;
+	private volatile boolean mReaping = false;
+	private final ArrayDeque<UsbRequest> mCompleted = new ArrayDeque<>();
+	private final Object mRxLock = new Object();
+
+	/** Target size of one synchronous IN transfer, rounded down to a multiple of the endpoint max packet size. */
+	static final int AGGREGATION_SIZE = 16 * 1024;
+
+	/** Largest bulk transfer older Android releases accept in one call. */
+	static final int MAX_BULK_TRANSFER = 16 * 1024;
+
+	private int mMaxPacketSize = 64;
+	private boolean mAggregate = true;
+	private byte[] mAggBuf = null;
+	private int mAggPos = 0;
+	private int mAggLen = 0;
+
+	/** Synchronous mode IN request on API 26+, so that cancelRead() can end a transfer in progress. */
+	private UsbRequest mSyncRequest = null;
+	private byte[] mSyncArray = null;
+	private ByteBuffer mSyncWrap = null;
+	private volatile boolean mSyncPending = false;
+
+	private final AtomicLong mTransfers = new AtomicLong();
+	private final AtomicLong mTransferBytes = new AtomicLong();
+	private final AtomicLong mTransferRequested = new AtomicLong();
+	private final AtomicLong mTransferPackets = new AtomicLong();
+	private final AtomicLong mBytesCopied = new AtomicLong();
+
+	/** CDC data interface and bulk endpoint indexes of a reader. */
+	private static final class EndpointConfig
+	{
+		final int iface;
+		final int in;
+		final int out;
+
+		EndpointConfig(int iface, int in, int out)
+		{
+			this.iface = iface;
+			this.in = in;
+			this.out = out;
+		}
+	}
+
+	/**
+	 * Transfers on an open connection. Tests run the transport on a fake device through this.
+	 */
+	interface UsbIo
+	{
+		int bulkTransfer(UsbEndpoint ep, byte []buffer, int offset, int length, int timeout);
+
+		/** @return Completed request, null on failure. */
+		UsbRequest requestWait();
+
+		/** @return Completed request, null on failure. */
+		UsbRequest requestWait(long timeout) throws TimeoutException;
+
+		/** @return Request initialized for the endpoint, null on failure. */
+		UsbRequest openRequest(UsbEndpoint ep);
+
+		void close();
+	}
+
+	/** UsbIo of a real device. */
+	private static final class ConnectionIo implements UsbIo
+	{
+		private final UsbDeviceConnection mConn;
+
+		ConnectionIo(UsbDeviceConnection conn)
+		{
+			mConn = conn;
+		}
+
+		@Override
+		public int bulkTransfer(UsbEndpoint ep, byte []buffer, int offset, int length, int timeout)
+		{
+			return mConn.bulkTransfer(ep, buffer, offset, length, timeout);
+		}
+
+		@Override
+		public UsbRequest requestWait()
+		{
+			return mConn.requestWait();
+		}
+
+		@Override
+		public UsbRequest requestWait(long timeout) throws TimeoutException
+		{
+			return mConn.requestWait(timeout);
+		}
+
+		@Override
+		public UsbRequest openRequest(UsbEndpoint ep)
+		{
+			UsbRequest req = new UsbRequest();
+			if (req.initialize(mConn, ep))
+				return req;
+			req.close();
+			return null;
+		}
+
+		@Override
+		public void close()
+		{
+			mConn.close();
+		}
+	}
+
+	/** Known readers by vendor, product and serial number. */
+	private static final Map<String, EndpointConfig> sEndpointCache = new HashMap<>();
 	
 	/**
 	 * The transport constructor.
@@ -56,44 +202,480 @@ public class NurApiUsbTransport implements NurApiTransport
 		mManager = manager;
 		mDevice = dev;
 	}
+
+	/**
+	 * @return USB device this transport talks to.
+	 */
+	public UsbDevice getDevice()
+	{
+		return mDevice;
+	}
 	
+	/**
+	 * Keep several asynchronous IN transfers queued so that the bus is never idle between reads.
+	 * A reap thread collects completed transfers and readData() serves directly from their buffers. Applied on next connect.
+	 * @param depth Number of queued transfers, 0 to read with one synchronous transfer per readData() call.
+	 */
+	public void setQueueDepth(int depth)
+	{
+		mQueueDepth = Math.max(0, depth);
+	}
+
+	public int getQueueDepth()
+	{
+		return mQueueDepth;
+	}
+
+	/**
+	 * Set read timeout range. Read timeout starts from the minimum after received data
+	 * and doubles on every read that times out, up to the maximum.
+	 * @param min Timeout while data is flowing in milliseconds.
+	 * @param max Timeout when idle in milliseconds.
+	 */
+	public void setReadTimeouts(int min, int max)
+	{
+		mMinReadTimeout = Math.max(1, min);
+		mMaxReadTimeout = Math.max(mMinReadTimeout, max);
+		mReadTimeout = mMinReadTimeout;
+	}
+
+	/**
+	 * @return Timeout of the next synchronous read in milliseconds.
+	 */
+	public int getCurrentReadTimeout()
+	{
+		return mReadTimeout;
+	}
+
+	/**
+	 * Make the blocked or next readData() call return 0 without data.
+	 * A waiting read wakes up immediately, except synchronous reads before Android 8.0
+	 * which use bulkTransfer() and return at their current read timeout.
+	 */
+	public void cancelRead()
+	{
+		mCancelRead = true;
+		synchronized (mRxLock) {
+			mRxLock.notifyAll();
+		}
+		UsbRequest req = mSyncRequest;
+		if (req != null && mSyncPending)
+			req.cancel();
+	}
+
+	/**
+	 * @return Throughput, error and latency counters of the current connection.
+	 */
+	public NurTransportMetrics getMetrics()
+	{
+		return mMetrics;
+	}
+
+	/**
+	 * Select how synchronous reads are done.
+	 * @param aggregate true to read large transfers to an internal buffer and copy to NurApi from it (default),
+	 * false to transfer directly to NurApi's buffer without copying, in whole packets that fit to it.
+	 */
+	public void setReadAggregation(boolean aggregate)
+	{
+		mAggregate = aggregate;
+	}
+
+	public boolean getReadAggregation()
+	{
+		return mAggregate;
+	}
+
+	/**
+	 * @return Bytes copied between buffers on the receive path after the USB stack delivered them.
+	 */
+	public long getBytesCopied()
+	{
+		return mBytesCopied.get();
+	}
+
+	/**
+	 * @return Average number of times each received byte was copied, 0 for a zero-copy path.
+	 */
+	public double getCopiesPerByte()
+	{
+		long n = mTransferBytes.get();
+		return n == 0 ? 0 : (double) mBytesCopied.get() / n;
+	}
+
+	/**
+	 * @return Max packet size of the bulk IN endpoint, valid when connected.
+	 */
+	public int getMaxPacketSize()
+	{
+		return mMaxPacketSize;
+	}
+
+	/**
+	 * @return Number of completed IN transfers that returned data.
+	 */
+	public long getTransferCount()
+	{
+		return mTransfers.get();
+	}
+
+	/**
+	 * @return Average bytes per completed IN transfer.
+	 */
+	public double getAverageTransferSize()
+	{
+		long n = mTransfers.get();
+		return n == 0 ? 0 : (double) mTransferBytes.get() / n;
+	}
+
+	/**
+	 * @return Average fill of the IN transfers in percent of the requested length.
+	 */
+	public double getAverageTransferFill()
+	{
+		long req = mTransferRequested.get();
+		return req == 0 ? 0 : mTransferBytes.get() * 100.0 / req;
+	}
+
+	/**
+	 * @return Average number of USB packets per completed IN transfer.
+	 */
+	public double getAveragePacketsPerTransfer()
+	{
+		long n = mTransfers.get();
+		return n == 0 ? 0 : (double) mTransferPackets.get() / n;
+	}
+
+	private void onTransfer(int bytes, int requested)
+	{
+		mTransfers.incrementAndGet();
+		mTransferBytes.addAndGet(bytes);
+		mTransferRequested.addAndGet(requested);
+		mTransferPackets.addAndGet((bytes + mMaxPacketSize - 1) / mMaxPacketSize);
+	}
+
+	private void resetTransferStats()
+	{
+		mTransfers.set(0);
+		mTransferBytes.set(0);
+		mTransferRequested.set(0);
+		mTransferPackets.set(0);
+		mBytesCopied.set(0);
+	}
+
 	/**
 	 * {@inheritDoc} 
 	 */
 	@Override
 	public int readData(byte []buffer) {
 		int ret = -1;
-		if (mDeviceConnection == null) {
-			Log.d(TAG, "readData mDeviceConnection == null");
+		if (mIo == null) {
+			Log.d(TAG, "readData not connected");
 			return ret;
 		}
 
+		if (mRequests != null)
+			return readQueued(buffer);
+
+		if (mAggPos < mAggLen)
+			return takeAggregated(buffer);
+
+		if (mCancelRead) {
+			mCancelRead = false;
+			return 0;
+		}
+
 		try {
-			ret = mDeviceConnection.bulkTransfer(mInput, buffer, buffer.length, TRANSFER_TIMEOUT);
+			int timeout = mReadTimeout;
+			long start = System.nanoTime();
+			// Transfer length in whole packets completes only on a short packet or a full buffer
+			boolean direct = !mAggregate && buffer.length >= mMaxPacketSize;
+			byte []dest = direct ? buffer : mAggBuf;
+			int len = direct ? Math.min(buffer.length / mMaxPacketSize * mMaxPacketSize, MAX_BULK_TRANSFER) : mAggBuf.length;
+			ret = syncTransfer(dest, len, timeout);
+			if (ret <= 0 && mCancelRead) {
+				mCancelRead = false;
+				return 0;
+			}
+			if (ret > 0) {
+				mReadTimeout = mMinReadTimeout;
+				mFastFails = 0;
+				onTransfer(ret, len);
+				if (direct) {
+					mMetrics.onRead(buffer, 0, ret);
+					return ret;
+				}
+				mAggPos = 0;
+				mAggLen = ret;
+				return takeAggregated(buffer);
+			}
+			if (ret < 0 && (System.nanoTime() - start) / 1000000 < timeout / 2) {
+				// Timeout and failure both return -1; failure returns at once
+				if (++mFastFails >= FAST_FAIL_LIMIT) {
+					Log.d(TAG, "readData transfer failed " + mFastFails + " times");
+					mMetrics.onReadError("bulkTransfer " + ret);
+					disconnect();
+					return -1;
+				}
+			} else {
+				mFastFails = 0;
+				mMetrics.onReadTimeout();
+				mReadTimeout = Math.min(mReadTimeout * 2, mMaxReadTimeout);
+			}
+			ret = 0;
 		} catch (Exception e)
 		{
 			Log.d(TAG, "readData error: " + e.getMessage());
+			mMetrics.onReadError(e.toString());
 			disconnect();
 		}
 		return ret;
 	}
 
+	/**
+	 * One synchronous IN transfer. On API 26+ done with a queued request that cancelRead() can cancel.
+	 * The request reads straight to the wrapped destination array, like bulkTransfer() does.
+	 * @return Number of bytes received, -1 on timeout, cancel or failure like bulkTransfer().
+	 */
+	private int syncTransfer(byte []dest, int len, int timeout)
+	{
+		UsbRequest req = mSyncRequest;
+		if (req == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+			return mIo.bulkTransfer(mInput, dest, 0, len, timeout);
+
+		if (mSyncArray != dest) {
+			mSyncArray = dest;
+			mSyncWrap = ByteBuffer.wrap(dest);
+		}
+		ByteBuffer buf = mSyncWrap;
+		buf.clear();
+		buf.limit(len);
+		if (!req.queue(buf))
+			return -1;
+		mSyncPending = true;
+		// Cancel that came in before the request was queued
+		if (mCancelRead)
+			req.cancel();
+
+		UsbRequest done;
+		try {
+			done = mIo.requestWait(timeout);
+		} catch (TimeoutException e) {
+			// Reap the request before it is queued again; data that completed meanwhile is kept
+			req.cancel();
+			try {
+				done = mIo.requestWait();
+			} catch (Exception ex) {
+				done = null;
+			}
+		} catch (Exception e) {
+			done = null;
+		}
+		mSyncPending = false;
+
+		int n = done == req ? buf.position() : 0;
+		return n > 0 ? n : -1;
+	}
+
+	/** Serve read from the aggregation buffer. */
+	private int takeAggregated(byte []buffer)
+	{
+		int len = Math.min(mAggLen - mAggPos, buffer.length);
+		System.arraycopy(mAggBuf, mAggPos, buffer, 0, len);
+		mAggPos += len;
+		mBytesCopied.addAndGet(len);
+		mMetrics.onRead(buffer, 0, len);
+		return len;
+	}
+
+	/**
+	 * Serve read directly from the oldest completed transfer. Its request is queued again once drained,
+	 * so a slow reader stalls the device instead of overflowing a buffer.
+	 */
+	private int readQueued(byte []buffer)
+	{
+		int len;
+		synchronized (mRxLock)
+		{
+			if (mCompleted.isEmpty() && mReaping && !mCancelRead) {
+				try {
+					mRxLock.wait(mMaxReadTimeout);
+				} catch (InterruptedException e) {
+					return 0;
+				}
+			}
+
+			mCancelRead = false;
+			UsbRequest req = mCompleted.peekFirst();
+			if (req == null) {
+				mMetrics.onReadTimeout();
+				return mReaping ? 0 : -1;
+			}
+
+			ByteBuffer buf = (ByteBuffer) req.getClientData();
+			len = Math.min(buf.remaining(), buffer.length);
+			buf.get(buffer, 0, len);
+			mBytesCopied.addAndGet(len);
+			if (!buf.hasRemaining()) {
+				mCompleted.pollFirst();
+				if (mReaping && !queueRequest(req, buf))
+					mMetrics.onReadError("UsbRequest queue failed");
+			}
+		}
+		mMetrics.onRead(buffer, 0, len);
+		return len;
+	}
+
+	private static boolean queueRequest(UsbRequest req, ByteBuffer buf)
+	{
+		buf.clear();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+			return req.queue(buf);
+		return req.queue(buf, buf.capacity());
+	}
+
+	private void startReaping(UsbIo io) throws Exception
+	{
+		synchronized (mRxLock) {
+			mCompleted.clear();
+		}
+		mRequests = new UsbRequest[mQueueDepth];
+		for (int i = 0; i < mQueueDepth; i++)
+		{
+			UsbRequest req = io.openRequest(mInput);
+			if (req == null)
+				throw new Exception("UsbRequest init failed");
+			ByteBuffer buf = ByteBuffer.allocateDirect(QUEUED_TRANSFER_SIZE);
+			req.setClientData(buf);
+			mRequests[i] = req;
+			if (!queueRequest(req, buf))
+				throw new Exception("UsbRequest queue failed");
+		}
+
+		mReaping = true;
+		mReapThread = new Thread(() -> reapLoop(io), TAG + "-reap");
+		mReapThread.start();
+	}
+
+	/** Hands completed IN transfers to readData() in completion order. */
+	private void reapLoop(UsbIo io)
+	{
+		while (mReaping)
+		{
+			UsbRequest req;
+			try {
+				req = io.requestWait();
+			} catch (Exception e) {
+				req = null;
+			}
+			if (req == null)
+				break;
+
+			ByteBuffer buf = (ByteBuffer) req.getClientData();
+			int n = buf.position();
+			if (n == 0)
+			{
+				// Zero length packet or cancelled
+				if (!mReaping || !queueRequest(req, buf))
+					break;
+				continue;
+			}
+
+			onTransfer(n, buf.capacity());
+			buf.flip();
+			synchronized (mRxLock)
+			{
+				mCompleted.addLast(req);
+				mRxLock.notifyAll();
+			}
+		}
+
+		boolean lost = mReaping;
+		mReaping = false;
+		synchronized (mRxLock) {
+			mRxLock.notifyAll();
+		}
+		if (lost) {
+			// Device detached or transfer failed
+			Log.d(TAG, "reap loop stopped");
+			mMetrics.onReadError("requestWait failed");
+			disconnect();
+		}
+	}
+
+	/** Cancel the queued requests and wait until the reap thread has seen them complete and exited. */
+	private void stopReaping()
+	{
+		mReaping = false;
+		synchronized (mRxLock) {
+			mRxLock.notifyAll();
+		}
+		UsbRequest[] requests = mRequests;
+		if (requests != null) {
+			for (UsbRequest req : requests) {
+				if (req != null)
+					req.cancel();
+			}
+		}
+
+		Thread t = mReapThread;
+		mReapThread = null;
+		if (t != null && t != Thread.currentThread()) {
+			try {
+				t.join(500);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Called after stopReaping(), while the connection the requests belong to is still open. */
+	private void releaseRequests()
+	{
+		UsbRequest[] requests = mRequests;
+		mRequests = null;
+		if (requests != null) {
+			for (UsbRequest req : requests) {
+				if (req != null)
+					req.close();
+			}
+		}
+		UsbRequest syncReq = mSyncRequest;
+		mSyncRequest = null;
+		if (syncReq != null)
+			syncReq.close();
+	}
+
 	/**
 	 * {@inheritDoc} 
 	 */	
 	@Override
 	public int writeData(byte []buffer, int len) {
 		int ret = -1;
-		if (mDeviceConnection == null) {
-			Log.d(TAG, "writeData mDeviceConnection == null");
+		if (mIo == null) {
+			Log.d(TAG, "writeData not connected");
 			return ret;
 		}
 
+		mMetrics.onWrite(buffer, len);
 		try {
-			ret = mDeviceConnection.bulkTransfer(mOutput, buffer, len, TRANSFER_TIMEOUT);
+			// Long packets are sent in place from the caller's buffer, one transfer at a time
+			int off = 0;
+			do {
+				int n = Math.min(len - off, MAX_BULK_TRANSFER);
+				ret = mIo.bulkTransfer(mOutput, buffer, off, n, TRANSFER_TIMEOUT);
+				if (ret < 0 || (ret == 0 && n > 0)) {
+					mMetrics.onWriteError("bulkTransfer " + ret);
+					return -1;
+				}
+				mMetrics.onSegment();
+				off += ret;
+			} while (off < len);
+			ret = len;
 		} catch (Exception e)
 		{
 			Log.d(TAG, "writeData error: " + e.getMessage());
+			mMetrics.onWriteError(e.toString());
 			disconnect();
 		}
 		return ret;
@@ -107,39 +689,30 @@ public class NurApiUsbTransport implements NurApiTransport
 		try
 		{
 			mDeviceConnection = mManager.openDevice(mDevice);
-	
-			int cdcIndex = getCDC();
-			if (cdcIndex == -1)
+			if (mDeviceConnection == null)
 			{
-				throw new Exception("No USB interface found");
+				throw new Exception("Could not open device");
 			}
-			mInterface = mDevice.getInterface(cdcIndex);
-			mDeviceConnection.claimInterface(mInterface, true);
-	
-			int endPts = mInterface.getEndpointCount();
-	
-			for (int i = 0; i < endPts; i++)
+
+			String key = getCacheKey(mDevice, mDeviceConnection.getSerial());
+			EndpointConfig cfg;
+			synchronized (sEndpointCache) {
+				cfg = sEndpointCache.get(key);
+			}
+			if (cfg == null || !applyEndpointConfig(cfg))
 			{
-				UsbEndpoint endpoint = mInterface.getEndpoint(i);
-				
-				if (endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK)
-				{
-					if (endpoint.getDirection() == UsbConstants.USB_DIR_IN)
-					{
-						mInput = endpoint;
-					}
-					else if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT)
-					{
-						mOutput = endpoint;
-					}
+				cfg = discoverEndpoints();
+				synchronized (sEndpointCache) {
+					sEndpointCache.put(key, cfg);
 				}
 			}
-			
-			if (mInput == null || mOutput == null)
+			else
 			{
-				throw new Exception("Could not open EP's");
+				Log.d(TAG, "Using cached endpoints of " + key);
 			}
+			mDeviceConnection.claimInterface(mInterface, true);
 
+			startTransfers(new ConnectionIo(mDeviceConnection), mInput.getMaxPacketSize());
 			Log.d(TAG, "connect OK");
 		}
 		catch (Exception ex)
@@ -149,6 +722,28 @@ public class NurApiUsbTransport implements NurApiTransport
 		}
 	}
 
+	/**
+	 * Set up reading on an open connection.
+	 * @param maxPacketSize Max packet size of the bulk IN endpoint.
+	 */
+	void startTransfers(UsbIo io, int maxPacketSize) throws Exception
+	{
+		mIo = io;
+		mMaxPacketSize = Math.max(1, maxPacketSize);
+		mAggBuf = new byte[Math.max(mMaxPacketSize, (AGGREGATION_SIZE / mMaxPacketSize) * mMaxPacketSize)];
+		mAggPos = mAggLen = 0;
+		mReadTimeout = mMinReadTimeout;
+		mFastFails = 0;
+		mCancelRead = false;
+
+		mMetrics.reset();
+		resetTransferStats();
+		if (mQueueDepth > 0)
+			startReaping(io);
+		else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+			mSyncRequest = io.openRequest(mInput);
+	}
+
 	/**
 	 * {@inheritDoc} 
 	 */
@@ -157,15 +752,20 @@ public class NurApiUsbTransport implements NurApiTransport
 	{
 		Log.d(TAG, "disconnect");
 
+		// Wake up a blocked read first. Requests are reaped and closed before the connection they were queued on.
+		cancelRead();
+		stopReaping();
+		releaseRequests();
 		synchronized (this) {
-			if (mDeviceConnection != null) {
-				if (mInterface != null) {
-					mDeviceConnection.releaseInterface(mInterface);
-				}
+			if (mDeviceConnection != null && mInterface != null)
+				mDeviceConnection.releaseInterface(mInterface);
+			if (mIo != null)
+				mIo.close();
+			else if (mDeviceConnection != null)
 				mDeviceConnection.close();
-			}
 		}
-		
+
+		mIo = null;
 		mDeviceConnection = null;
 		mInterface = null;
 		mInput = null;
@@ -178,7 +778,7 @@ public class NurApiUsbTransport implements NurApiTransport
 	@Override
 	public boolean isConnected()
 	{
-		return (mDeviceConnection != null);
+		return (mIo != null);
 	}
 
 	/**
@@ -190,6 +790,85 @@ public class NurApiUsbTransport implements NurApiTransport
 		return true;
 	}
 
+	/**
+	 * @return Endpoint cache key of a reader, made of its vendor id, product id and serial number.
+	 */
+	static String getCacheKey(UsbDevice dev, String serial)
+	{
+		return dev.getVendorId() + ":" + dev.getProductId() + ":" + (serial != null ? serial : "");
+	}
+
+	/**
+	 * Forget the interface and endpoint layouts of known readers.
+	 */
+	public static void clearEndpointCache()
+	{
+		synchronized (sEndpointCache) {
+			sEndpointCache.clear();
+		}
+	}
+
+	/** Take interface and endpoints by cached indexes. @return false if the device does not match the cache. */
+	private boolean applyEndpointConfig(EndpointConfig cfg)
+	{
+		if (cfg.iface >= mDevice.getInterfaceCount())
+			return false;
+		UsbInterface intf = mDevice.getInterface(cfg.iface);
+		if (intf.getInterfaceClass() != UsbConstants.USB_CLASS_CDC_DATA
+				|| cfg.in >= intf.getEndpointCount() || cfg.out >= intf.getEndpointCount())
+			return false;
+
+		UsbEndpoint in = intf.getEndpoint(cfg.in);
+		UsbEndpoint out = intf.getEndpoint(cfg.out);
+		if (in.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK || in.getDirection() != UsbConstants.USB_DIR_IN
+				|| out.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK || out.getDirection() != UsbConstants.USB_DIR_OUT)
+			return false;
+
+		mInterface = intf;
+		mInput = in;
+		mOutput = out;
+		return true;
+	}
+
+	/** Find CDC data interface and its bulk endpoints. */
+	private EndpointConfig discoverEndpoints() throws Exception
+	{
+		int cdcIndex = getCDC();
+		if (cdcIndex == -1)
+		{
+			throw new Exception("No USB interface found");
+		}
+		mInterface = mDevice.getInterface(cdcIndex);
+
+		int inIndex = -1, outIndex = -1;
+		int endPts = mInterface.getEndpointCount();
+
+		for (int i = 0; i < endPts; i++)
+		{
+			UsbEndpoint endpoint = mInterface.getEndpoint(i);
+			
+			if (endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK)
+			{
+				if (endpoint.getDirection() == UsbConstants.USB_DIR_IN)
+				{
+					mInput = endpoint;
+					inIndex = i;
+				}
+				else if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT)
+				{
+					mOutput = endpoint;
+					outIndex = i;
+				}
+			}
+		}
+		
+		if (mInput == null || mOutput == null)
+		{
+			throw new Exception("Could not open EP's");
+		}
+		return new EndpointConfig(cdcIndex, inIndex, outIndex);
+	}
+
 	/**
 	 * Get CDC index
 	 */
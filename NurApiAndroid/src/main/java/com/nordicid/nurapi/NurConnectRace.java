@@ -0,0 +1,152 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * "Happy eyeballs" style connect race between the addresses of one reader.
+ * Non-blocking connects are started to every candidate, a new one after each stagger delay,
+ * and the first one to complete wins; the others are cancelled.
+ * The winning connection is handed to the caller, so the reader sees only one TCP session.
+ */
+public class NurConnectRace
+{
+	static final String TAG = "NurConnectRace";
+
+	/** Default delay between starting connects to consecutive candidates in milliseconds. */
+	public static final int DEFAULT_STAGGER = 250;
+
+	/**
+	 * Race TCP connects to the candidates and close the winning connection.
+	 * Only use this as a reachability check; prefer {@link #connect(List, int, int)} which keeps the connection.
+	 * @param candidates Addresses in preference order.
+	 * @param stagger Delay between starting consecutive connects in milliseconds, 0 to start all at once.
+	 * @param timeout Overall timeout in milliseconds.
+	 * @return Address of the first completed connection, or null if none completed in time or the thread was interrupted.
+	 */
+	public static InetSocketAddress race(List<InetSocketAddress> candidates, int stagger, int timeout)
+	{
+		SocketChannel ch = connect(candidates, stagger, timeout);
+		if (ch == null)
+			return null;
+		InetSocketAddress addr = (InetSocketAddress) ch.socket().getRemoteSocketAddress();
+		try {
+			ch.close();
+		} catch (Exception ignored) { }
+		return addr;
+	}
+
+	/**
+	 * Race TCP connects to the candidates.
+	 * @param candidates Addresses in preference order.
+	 * @param stagger Delay between starting consecutive connects in milliseconds, 0 to start all at once.
+	 * @param timeout Overall timeout in milliseconds.
+	 * @return First completed connection in non-blocking mode, owned by the caller,
+	 *         or null if none completed in time or the thread was interrupted.
+	 */
+	public static SocketChannel connect(List<InetSocketAddress> candidates, int stagger, int timeout)
+	{
+		if (candidates.isEmpty())
+			return null;
+
+		List<SocketChannel> channels = new ArrayList<>();
+		SocketChannel winner = null;
+		Selector selector = null;
+		try {
+			selector = Selector.open();
+			long start = System.currentTimeMillis();
+			long deadline = start + timeout;
+			int started = 0;
+			int failed = 0;
+
+			while (!Thread.currentThread().isInterrupted())
+			{
+				long now = System.currentTimeMillis();
+				if (now >= deadline)
+					break;
+
+				// Start next candidate when its turn comes
+				while (started < candidates.size() && now >= start + (long) started * stagger)
+				{
+					InetSocketAddress addr = candidates.get(started++);
+					try {
+						SocketChannel ch = SocketChannel.open();
+						ch.configureBlocking(false);
+						channels.add(ch);
+						if (ch.connect(addr)) {
+							winner = ch;
+							return ch;
+						}
+						ch.register(selector, SelectionKey.OP_CONNECT, addr);
+					} catch (Exception e) {
+						Log.d(TAG, "connect " + addr + " failed: " + e.getMessage());
+						failed++;
+					}
+				}
+
+				if (failed == candidates.size())
+					break;
+
+				long wait = deadline - now;
+				if (started < candidates.size())
+					wait = Math.min(wait, start + (long) started * stagger - now);
+				selector.select(Math.max(1, wait));
+
+				for (SelectionKey key : selector.selectedKeys())
+				{
+					SocketChannel ch = (SocketChannel) key.channel();
+					try {
+						if (ch.finishConnect()) {
+							Log.d(TAG, "winner " + key.attachment() + " in " + (System.currentTimeMillis() - start) + " ms");
+							key.cancel();
+							winner = ch;
+							return ch;
+						}
+					} catch (Exception e) {
+						Log.d(TAG, "connect " + key.attachment() + " failed: " + e.getMessage());
+						key.cancel();
+						failed++;
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (Exception e) {
+			Log.d(TAG, "race failed: " + e.getMessage());
+		} finally {
+			for (SocketChannel ch : channels) {
+				if (ch == winner)
+					continue;
+				try {
+					ch.close();
+				} catch (Exception ignored) { }
+			}
+			try {
+				if (selector != null)
+					selector.close();
+			} catch (Exception ignored) { }
+		}
+		return null;
+	}
+}
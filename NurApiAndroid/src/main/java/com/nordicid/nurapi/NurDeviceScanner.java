@@ -2,6 +2,8 @@ package com.nordicid.nurapi;
 
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
 import android.os.Build;
@@ -100,7 +102,8 @@ public class NurDeviceScanner implements BleScannerListener {
 
         if (requestingUSBDevice()) {
             Log.i(TAG,"Scanning USB Devices");
-            addDevice(getUsbDeviceSpec());
+            for (NurDeviceSpec spec : getUsbDeviceSpecs())
+                addDevice(spec);
         }
 
         if (requestingETHDevice()) {
@@ -184,6 +187,24 @@ public class NurDeviceScanner implements BleScannerListener {
 
     public List<NurDeviceSpec> getDeviceList(){ return mDeviceList; }
 
+    /**
+     * Collect every discovered TCP address of a reader, e.g. its LAN and WLAN addresses.
+     * Devices are matched by name. The result can be given to {@link NurApiSocketAutoConnect#setAddress(String)}
+     * to connect through the fastest path.
+     * @param device Discovered TCP device.
+     * @return Comma separated list of addresses, the given device's address first.
+     */
+    public String getTcpAddresses(NurDeviceSpec device) {
+        StringBuilder ret = new StringBuilder(device.getAddress());
+        for (NurDeviceSpec listDev : mDeviceList) {
+            if (listDev.getType().equals("TCP") && listDev.getName().equals(device.getName())
+                    && !listDev.getAddress().equals(device.getAddress())) {
+                ret.append(",").append(listDev.getAddress());
+            }
+        }
+        return ret.toString();
+    }
+
     public NurDeviceSpec getIntDeviceSpec() {
         return new NurDeviceSpec("type=INT;addr=integrated_reader;name=Integrated Reader");
     }
@@ -344,6 +365,26 @@ public class NurDeviceScanner implements BleScannerListener {
     public NurDeviceSpec getUsbDeviceSpec() {
         return new NurDeviceSpec("type=USB;addr=USB;name=USB Device");
     }
+
+    /**
+     * Get USB device specs. With several readers attached each gets its own spec addressed by serial number or device name.
+     * @return Specs, generic {@link #getUsbDeviceSpec()} if zero or one reader is attached
+     */
+    public List<NurDeviceSpec> getUsbDeviceSpecs() {
+        List<NurDeviceSpec> ret = new ArrayList<>();
+        UsbManager manager = (UsbManager) mOwner.getSystemService(Context.USB_SERVICE);
+        List<UsbDevice> devices = manager != null ? NurApiUsbAutoConnect.getNurDevices(manager) : new ArrayList<>();
+        if (devices.size() < 2) {
+            ret.add(getUsbDeviceSpec());
+            return ret;
+        }
+        for (UsbDevice device : devices) {
+            String serial = NurApiUsbAutoConnect.getDeviceSerial(device);
+            String name = serial != null ? "USB Device " + serial : "USB Device " + device.getDeviceName();
+            ret.add(new NurDeviceSpec("type=USB;addr=" + NurApiUsbAutoConnect.getDeviceAddress(device) + ";name=" + name));
+        }
+        return ret;
+    }
     //endregion
 
     //region BLE Devices
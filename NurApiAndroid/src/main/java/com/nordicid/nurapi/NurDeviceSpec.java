@@ -83,6 +83,16 @@ public class NurDeviceSpec {
         return Integer.parseInt(getPart(name));
     }
 
+    public int getPartInt(String name, int def) {
+        try {
+            return getPartInt(name);
+        }
+        catch (Exception ex)
+        {
+            return def;
+        }
+    }
+
     public boolean getPartBoolean(String name) throws Exception {
         return Boolean.parseBoolean(getPart(name));
     }
@@ -186,12 +196,32 @@ public class NurDeviceSpec {
         switch (spec.getType().toUpperCase())
         {
             case "BLE":
-                return new NurApiBLEAutoConnect(ctx, api);
+                NurApiBLEAutoConnect ble = new NurApiBLEAutoConnect(ctx, api);
+                ble.setWriteWithoutResponse(Boolean.parseBoolean(spec.getPart("writeNoResponse", "false")),
+                        spec.getPartInt("txCredits", UartService.DEFAULT_TX_CREDITS));
+                return ble;
             case "USB":
-                return new NurApiUsbAutoConnect(ctx, api);
+                NurApiUsbAutoConnect usb = new NurApiUsbAutoConnect(ctx, api);
+                usb.setQueueDepth(spec.getPartInt("queue", 0));
+                return usb;
             case "TCP":
             case "INT":
-                return new NurApiSocketAutoConnect(ctx, api);
+                NurApiSocketAutoConnect sock = new NurApiSocketAutoConnect(ctx, api);
+                sock.setUseChannelTransport(Boolean.parseBoolean(spec.getPart("nio", "false")));
+                if (Boolean.parseBoolean(spec.getPart("hub", "false")))
+                    sock.setSocketHub(NurSocketHub.getShared());
+                sock.setTimeouts(spec.getPartInt("connectTimeout", NurApiSocketTransport.DEFAULT_CONNECT_TIMEOUT),
+                        spec.getPartInt("readTimeout", 0),
+                        spec.getPartInt("idleTimeout", 0));
+                sock.setWritePolicy(Boolean.parseBoolean(spec.getPart("tcpNoDelay", "false")),
+                        spec.getPartInt("coalesceWindow", 0));
+                sock.setKeepAlive(Boolean.parseBoolean(spec.getPart("keepAlive", "false")));
+                sock.setAutoTune(Boolean.parseBoolean(spec.getPart("autoTune", "false")));
+                sock.setHeartbeat(spec.getPartInt("heartbeat", 0), spec.getPartInt("heartbeatMissed", 2));
+                // Local socket is opt-in, the service socket name is device specific
+                if (spec.getType().equalsIgnoreCase("INT") && spec.hasPart("socket"))
+                    sock.setLocalSocketName(spec.getPart("socket", null));
+                return sock;
             case "SMARTPAIR":
                 if (NurSmartPairSupport.isSupported())
                     return NurSmartPairSupport.createSmartPairTransport(ctx, api);
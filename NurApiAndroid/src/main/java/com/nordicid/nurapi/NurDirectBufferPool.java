@@ -0,0 +1,99 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size direct byte buffers shared by the NIO transports.
+ * Direct buffers are expensive to allocate and are released only by GC,
+ * so transports borrow them on connect and give them back on disconnect.
+ */
+public class NurDirectBufferPool
+{
+	/** Size of the pooled buffers. Large enough for the biggest NUR packet. */
+	public static final int BUFFER_SIZE = 16 * 1024;
+
+	/** Maximum number of idle buffers kept in the pool. */
+	public static final int MAX_POOLED = 32;
+
+	private static final NurDirectBufferPool sShared = new NurDirectBufferPool();
+
+	private final ConcurrentLinkedQueue<ByteBuffer> mFree = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger mFreeCount = new AtomicInteger(0);
+	private final AtomicInteger mAllocated = new AtomicInteger(0);
+
+	/**
+	 * Get the process wide pool.
+	 * @return Shared pool instance.
+	 */
+	public static NurDirectBufferPool getShared()
+	{
+		return sShared;
+	}
+
+	/**
+	 * Borrow a cleared buffer from the pool. A new one is allocated if the pool is empty.
+	 * @return Direct buffer of {@link #BUFFER_SIZE} bytes.
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buf = mFree.poll();
+		if (buf == null) {
+			mAllocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		mFreeCount.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers exceeding {@link #MAX_POOLED} are left to GC.
+	 * @param buf Buffer received from {@link #acquire()}, null is ignored.
+	 */
+	public void release(ByteBuffer buf)
+	{
+		if (buf == null || !buf.isDirect() || buf.capacity() != BUFFER_SIZE)
+			return;
+
+		if (mFreeCount.incrementAndGet() > MAX_POOLED) {
+			mFreeCount.decrementAndGet();
+			return;
+		}
+		buf.clear();
+		mFree.offer(buf);
+	}
+
+	/**
+	 * @return Number of direct buffers allocated by this pool so far.
+	 */
+	public int getAllocatedCount()
+	{
+		return mAllocated.get();
+	}
+
+	/**
+	 * @return Number of idle buffers currently in the pool.
+	 */
+	public int getFreeCount()
+	{
+		return mFreeCount.get();
+	}
+}
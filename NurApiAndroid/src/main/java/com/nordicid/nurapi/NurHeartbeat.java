@@ -0,0 +1,184 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Application level heartbeat that pings the reader periodically.
+ * A link that silently died (no FIN, e.g. reader dropped off Wi-Fi) is detected after
+ * maxMissed failed pings and the transport is disconnected, which lets the auto connect logic take over.
+ * Worst case detection time is about interval * maxMissed plus the NurApi command timeout.
+ * <p>
+ * Any received data proves the link is alive: no ping is sent if bytes arrived during the last interval,
+ * and a failed ping is not counted as missed if bytes arrived while it was waiting, e.g. when it was
+ * queued behind a long running command. This needs transport metrics; without them every failed ping counts.
+ * </p>
+ * <p>
+ * The interval timer runs on the shared {@link NurTransportScheduler} and only checks traffic.
+ * The blocking ping is handed to a bounded worker pool, so heartbeats of many readers do not
+ * need a thread each. At most one ping per reader is in flight; ticks during it are skipped.
+ * </p>
+ */
+class NurHeartbeat implements Runnable
+{
+	static final String TAG = "NurHeartbeat";
+
+	private final NurApi mApi;
+	private final NurApiTransport mTransport;
+	private final NurTransportMetrics mMetrics;
+	private final int mInterval;
+	private final int mMaxMissed;
+	private final Executor mPingExecutor;
+	private int mMissed = 0;
+	private long mLastBytesIn = -1;
+	private ScheduledFuture<?> mTask = null;
+	private boolean mPinging = false;
+
+	NurHeartbeat(NurApi api, NurApiTransport transport, int interval, int maxMissed)
+	{
+		this(api, transport, interval, maxMissed, null);
+	}
+
+	/**
+	 * @param pingExecutor Executor running the blocking pings, null to use the shared transport worker pool.
+	 */
+	NurHeartbeat(NurApi api, NurApiTransport transport, int interval, int maxMissed, Executor pingExecutor)
+	{
+		mPingExecutor = pingExecutor != null ? pingExecutor : NurTransportScheduler.getWorkers();
+		mApi = api;
+		mTransport = transport;
+		mMetrics = getMetrics(transport);
+		mInterval = Math.max(100, interval);
+		mMaxMissed = Math.max(1, maxMissed);
+	}
+
+	/** @return Metrics of the transport, null if it does not keep them. */
+	static NurTransportMetrics getMetrics(NurApiTransport tr)
+	{
+		if (tr instanceof NurApiSocketTransport)
+			return ((NurApiSocketTransport) tr).getMetrics();
+		if (tr instanceof NurApiSocketHubTransport)
+			return ((NurApiSocketHubTransport) tr).getMetrics();
+		if (tr instanceof NurApiSocketChannelTransport)
+			return ((NurApiSocketChannelTransport) tr).getMetrics();
+		if (tr instanceof NurApiLocalSocketTransport)
+			return ((NurApiLocalSocketTransport) tr).getMetrics();
+		return null;
+	}
+
+	synchronized void start()
+	{
+		if (mTask != null)
+			return;
+		mTask = NurTransportScheduler.get().scheduleWithFixedDelay(this::tick, mInterval, mInterval, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop()
+	{
+		if (mTask != null) {
+			mTask.cancel(false);
+			mTask = null;
+		}
+	}
+
+	private synchronized boolean isStopped()
+	{
+		return mTask == null;
+	}
+
+	/** @return true if bytes were received since the previous call. */
+	private synchronized boolean receivedSinceLastCheck()
+	{
+		if (mMetrics == null)
+			return false;
+		long in = mMetrics.getBytesIn();
+		boolean received = mLastBytesIn >= 0 && in != mLastBytesIn;
+		mLastBytesIn = in;
+		return received;
+	}
+
+	/** Interval timer, runs on the shared scheduler thread and must not block. */
+	private void tick()
+	{
+		if (!mTransport.isConnected() || mApi.getTransport() != mTransport) {
+			stop();
+			return;
+		}
+
+		synchronized (this) {
+			if (mPinging || mTask == null)
+				return;
+			if (receivedSinceLastCheck()) {
+				mMissed = 0;
+				return;
+			}
+			mPinging = true;
+		}
+
+		try {
+			mPingExecutor.execute(this);
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				mPinging = false;
+			}
+		}
+	}
+
+	/** Ping, runs on the worker pool. */
+	@Override
+	public void run()
+	{
+		try {
+			ping();
+		} finally {
+			synchronized (this) {
+				mPinging = false;
+			}
+		}
+	}
+
+	private void ping()
+	{
+		try {
+			mApi.ping();
+			mMissed = 0;
+		} catch (Exception e) {
+			if (isStopped())
+				return;
+			if (receivedSinceLastCheck()) {
+				// Busy behind another command, but the reader is talking
+				Log.d(TAG, "ping failed while receiving, not counted: " + e.getMessage());
+				return;
+			}
+			mMissed++;
+			Log.d(TAG, "ping failed " + mMissed + "/" + mMaxMissed + ": " + e.getMessage());
+			if (mMissed >= mMaxMissed) {
+				Log.d(TAG, "link dead, disconnecting");
+				stop();
+				mTransport.disconnect();
+			}
+		}
+		// Ping response itself is not traffic from the next interval
+		receivedSinceLastCheck();
+	}
+}
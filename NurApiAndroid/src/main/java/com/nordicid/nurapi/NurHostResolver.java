@@ -0,0 +1,268 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Host name resolver cache shared by the socket transports.
+ * <p>
+ * Lookups run in a small background pool. A fresh cache entry is returned without waiting;
+ * an expired entry is returned as is while a refresh runs in the background, so lookup latency
+ * stays out of the reconnect path once a host has been resolved. Failed lookups are cached for a shorter time.
+ * IP address literals never reach the cache.
+ * </p>
+ */
+public class NurHostResolver
+{
+	static final String TAG = "NurHostResolver";
+
+	/** Default time a successful lookup is considered fresh, in milliseconds. */
+	public static final int DEFAULT_TTL = 60000;
+
+	/** Default time a failed lookup is cached, in milliseconds. */
+	public static final int DEFAULT_NEGATIVE_TTL = 5000;
+
+	private static NurHostResolver sShared = null;
+
+	private final Map<String, Entry> mCache = new HashMap<>();
+	private final ExecutorService mExecutor;
+	private int mTtl = DEFAULT_TTL;
+	private int mNegativeTtl = DEFAULT_NEGATIVE_TTL;
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mStaleHits = new AtomicLong();
+
+	private static class Entry
+	{
+		InetAddress address;	// null for failed lookup
+		long resolved;			// time of the last successful lookup
+		long expires;
+		Future<?> pending;
+	}
+
+	/**
+	 * @return Resolver shared by all socket transports.
+	 */
+	public static synchronized NurHostResolver getShared()
+	{
+		if (sShared == null)
+			sShared = new NurHostResolver();
+		return sShared;
+	}
+
+	public NurHostResolver()
+	{
+		final AtomicInteger count = new AtomicInteger(0);
+		mExecutor = Executors.newFixedThreadPool(2, r -> {
+			Thread t = new Thread(r, TAG + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Set cache lifetimes.
+	 * @param ttl Time a successful lookup is fresh in milliseconds.
+	 * @param negativeTtl Time a failed lookup is cached in milliseconds, 0 to not cache failures.
+	 */
+	public synchronized void setTtl(int ttl, int negativeTtl)
+	{
+		mTtl = Math.max(0, ttl);
+		mNegativeTtl = Math.max(0, negativeTtl);
+	}
+
+	public synchronized int getTtl()
+	{
+		return mTtl;
+	}
+
+	public synchronized int getNegativeTtl()
+	{
+		return mNegativeTtl;
+	}
+
+	/**
+	 * @return Number of lookups answered from the cache, including expired entries.
+	 */
+	public long getHitCount()
+	{
+		return mHits.get();
+	}
+
+	/**
+	 * @return Number of lookups answered with an expired entry while it was refreshed.
+	 */
+	public long getStaleHitCount()
+	{
+		return mStaleHits.get();
+	}
+
+	/**
+	 * @return Number of lookups that had to wait for name resolution.
+	 */
+	public long getMissCount()
+	{
+		return mMisses.get();
+	}
+
+	/**
+	 * Drop all cached entries.
+	 */
+	public synchronized void clear()
+	{
+		mCache.clear();
+	}
+
+	/**
+	 * Start resolving a host in the background so that a later {@link #resolve} does not wait.
+	 * @param host Host name or IP address.
+	 */
+	public void prefetch(String host)
+	{
+		if (host == null || host.isEmpty() || isLiteral(host))
+			return;
+		synchronized (this) {
+			Entry e = mCache.get(host);
+			if (e == null || System.currentTimeMillis() >= e.expires)
+				refreshLocked(host, e);
+		}
+	}
+
+	/**
+	 * Resolve host and port to a socket address.
+	 * @param host Host name or IP address.
+	 * @param port Port.
+	 * @param timeout Maximum time to wait for a lookup not in the cache, in milliseconds. 0 waits without limit.
+	 * @return Resolved address, or unresolved address if the host is unknown or the lookup did not complete in time.
+	 */
+	public InetSocketAddress resolve(String host, int port, int timeout)
+	{
+		if (isLiteral(host))
+			return new InetSocketAddress(host, port);
+
+		Future<?> pending;
+		synchronized (this)
+		{
+			Entry e = mCache.get(host);
+			long now = System.currentTimeMillis();
+			// expires is 0 until the first lookup completes
+			if (e != null && e.expires != 0)
+			{
+				if (now < e.expires) {
+					mHits.incrementAndGet();
+					return e.address != null ? new InetSocketAddress(e.address, port) : InetSocketAddress.createUnresolved(host, port);
+				}
+				if (e.address != null) {
+					// Use the old address now, refresh for the next time
+					mHits.incrementAndGet();
+					mStaleHits.incrementAndGet();
+					refreshLocked(host, e);
+					return new InetSocketAddress(e.address, port);
+				}
+			}
+			mMisses.incrementAndGet();
+			pending = refreshLocked(host, e);
+		}
+
+		try {
+			if (timeout > 0)
+				pending.get(timeout, TimeUnit.MILLISECONDS);
+			else
+				pending.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (Exception ex) {
+			Log.d(TAG, "resolve " + host + " did not complete: " + ex);
+		}
+
+		synchronized (this) {
+			Entry e = mCache.get(host);
+			if (e != null && e.address != null)
+				return new InetSocketAddress(e.address, port);
+		}
+		return InetSocketAddress.createUnresolved(host, port);
+	}
+
+	/** Start a lookup unless one is already running. Caller holds the lock. */
+	private Future<?> refreshLocked(final String host, Entry e)
+	{
+		if (e == null) {
+			e = new Entry();
+			mCache.put(host, e);
+		}
+		if (e.pending != null)
+			return e.pending;
+
+		final Entry entry = e;
+		entry.pending = mExecutor.submit(() -> {
+			InetAddress addr = null;
+			try {
+				addr = lookup(host);
+			} catch (Exception ex) {
+				Log.d(TAG, "lookup " + host + " failed: " + ex.getMessage());
+			}
+			synchronized (NurHostResolver.this) {
+				long now = System.currentTimeMillis();
+				if (addr != null) {
+					entry.address = addr;
+					entry.resolved = now;
+					entry.expires = now + mTtl;
+				} else {
+					// Keep a recently good address over a transient failure
+					if (entry.address != null && now >= entry.resolved + 2L * mTtl)
+						entry.address = null;
+					// Either way do not retry before the negative TTL, a failing server is not asked on every resolve
+					entry.expires = now + mNegativeTtl;
+				}
+				entry.pending = null;
+			}
+		});
+		return entry.pending;
+	}
+
+	/** Blocking name lookup, runs in the resolver pool. */
+	InetAddress lookup(String host) throws UnknownHostException
+	{
+		return InetAddress.getByName(host);
+	}
+
+	/** @return true if the host is an IPv4 or IPv6 literal that needs no lookup. */
+	static boolean isLiteral(String host)
+	{
+		if (host.indexOf(':') >= 0)
+			return true;
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if ((c < '0' || c > '9') && c != '.')
+				return false;
+		}
+		return !host.isEmpty();
+	}
+}
@@ -0,0 +1,415 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Manages many readers, each with its own {@link NurApi} and auto connect transport created from a device spec.
+ * <p>
+ * TCP readers run their connect logic on one bounded, shared executor instead of a thread per reader,
+ * and the first connect attempts after start or connection loss are staggered so that readers do not all
+ * reconnect at once after a common network outage. Events of all readers are delivered in order on one
+ * dispatch thread.
+ * </p>
+ */
+public class NurReaderFleet
+{
+	static final String TAG = "NurReaderFleet";
+
+	/** Default number of threads running connect logic. */
+	public static final int DEFAULT_POOL_SIZE = 4;
+
+	/** Default delay between the connect attempts of consecutive readers in milliseconds. */
+	public static final int DEFAULT_STAGGER = 100;
+
+	/** Staggering wraps around after this many milliseconds. */
+	static final int MAX_STAGGER_WINDOW = 5000;
+
+	/**
+	 * Merged event stream of all readers. Called on the fleet dispatch thread.
+	 */
+	public interface Listener
+	{
+		void onConnected(Reader reader);
+
+		void onDisconnected(Reader reader);
+
+		void onInventoryStream(Reader reader, NurEventInventory event);
+
+		void onTriggeredRead(Reader reader, NurEventTriggeredRead event);
+
+		void onIOChange(Reader reader, NurEventIOChange event);
+	}
+
+	/**
+	 * One reader of the fleet and its health.
+	 */
+	public static class Reader
+	{
+		private final NurDeviceSpec mSpec;
+		private final NurApi mApi;
+		private final NurApiAutoConnectTransport mAutoConnect;
+		private volatile long mConnectedSince = 0;
+		private volatile long mLastLostTime = 0;
+		private volatile int mDisconnectCount = 0;
+
+		Reader(NurDeviceSpec spec, NurApi api, NurApiAutoConnectTransport autoConnect)
+		{
+			mSpec = spec;
+			mApi = api;
+			mAutoConnect = autoConnect;
+		}
+
+		public NurDeviceSpec getSpec()
+		{
+			return mSpec;
+		}
+
+		public String getName()
+		{
+			return mSpec.getName();
+		}
+
+		public NurApi getApi()
+		{
+			return mApi;
+		}
+
+		public NurApiAutoConnectTransport getAutoConnect()
+		{
+			return mAutoConnect;
+		}
+
+		public boolean isConnected()
+		{
+			return mApi.isConnected();
+		}
+
+		/**
+		 * @return Time the current connection was established, 0 if not connected.
+		 */
+		public long getConnectedSince()
+		{
+			return mConnectedSince;
+		}
+
+		/**
+		 * @return Time the connection was last lost, 0 if never.
+		 */
+		public long getLastLostTime()
+		{
+			return mLastLostTime;
+		}
+
+		/**
+		 * @return Number of times the connection has been lost.
+		 */
+		public int getDisconnectCount()
+		{
+			return mDisconnectCount;
+		}
+
+		/**
+		 * @return Time from connection loss to reconnected in milliseconds for the last reconnect, -1 if unknown.
+		 */
+		public long getLastReconnectTime()
+		{
+			if (mAutoConnect instanceof NurApiSocketAutoConnect)
+				return ((NurApiSocketAutoConnect) mAutoConnect).getLastReconnectTime();
+			return -1;
+		}
+
+		/**
+		 * @return Connection state details from the auto connect transport.
+		 */
+		public String getDetails()
+		{
+			return mAutoConnect.getDetails();
+		}
+	}
+
+	private final Context mContext;
+	private final ScheduledThreadPoolExecutor mExecutor;
+	private final ExecutorService mDispatcher;
+	private final List<Reader> mReaders = new ArrayList<>();
+	private int mStagger = DEFAULT_STAGGER;
+	private int mAdded = 0;
+	private volatile Listener mListener = null;
+
+	/**
+	 * Create fleet with {@link #DEFAULT_POOL_SIZE} connect threads.
+	 * @param ctx Context for the auto connect transports.
+	 */
+	public NurReaderFleet(Context ctx)
+	{
+		this(ctx, DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * @param ctx Context for the auto connect transports.
+	 * @param poolSize Number of threads running connect logic for all readers.
+	 */
+	public NurReaderFleet(Context ctx, int poolSize)
+	{
+		mContext = ctx;
+		mExecutor = new ScheduledThreadPoolExecutor(Math.max(1, poolSize), daemonFactory(TAG + "-connect"));
+		mExecutor.setRemoveOnCancelPolicy(true);
+		mDispatcher = Executors.newSingleThreadExecutor(daemonFactory(TAG + "-events"));
+	}
+
+	private static ThreadFactory daemonFactory(final String name)
+	{
+		final AtomicInteger count = new AtomicInteger(0);
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Set listener for the merged event stream.
+	 * @param l Listener, null to remove.
+	 */
+	public void setListener(Listener l)
+	{
+		mListener = l;
+	}
+
+	/**
+	 * Set delay between the connect attempts of consecutively added readers. Applies to readers added after the call.
+	 * @param ms Delay in milliseconds, 0 to not stagger.
+	 */
+	public synchronized void setReconnectStagger(int ms)
+	{
+		mStagger = Math.max(0, ms);
+	}
+
+	/**
+	 * Add reader and start connecting to it.
+	 * @param specStr Device spec string, e.g. "type=TCP;addr=10.0.0.5:4333;name=Gate 1".
+	 * @return Added reader.
+	 * @throws NurApiException if transport can not be created for the spec.
+	 */
+	public synchronized Reader addReader(String specStr) throws NurApiException
+	{
+		NurDeviceSpec spec = new NurDeviceSpec(specStr);
+		NurApi api = new NurApi();
+		NurApiAutoConnectTransport at = NurDeviceSpec.createAutoConnectTransport(mContext, api, spec);
+		if (at instanceof NurApiSocketAutoConnect)
+			((NurApiSocketAutoConnect) at).setExecutor(mExecutor, (mAdded * mStagger) % MAX_STAGGER_WINDOW);
+		mAdded++;
+
+		Reader reader = new Reader(spec, api, at);
+		api.setListener(new ForwardingListener(reader));
+		mReaders.add(reader);
+
+		at.setAddress(getConnectAddress(spec));
+		Log.d(TAG, "added " + spec.getName() + ", " + mReaders.size() + " readers");
+		return reader;
+	}
+
+	/** Spec address with port appended when the spec has it as a separate part. */
+	static String getConnectAddress(NurDeviceSpec spec)
+	{
+		String addr = spec.getAddress();
+		int port = spec.getPort();
+		if (port > 0 && addr.indexOf(':') < 0)
+			return addr + ":" + port;
+		return addr;
+	}
+
+	/**
+	 * Disconnect and remove reader.
+	 * @param reader Reader to remove.
+	 */
+	public void removeReader(Reader reader)
+	{
+		synchronized (this) {
+			if (!mReaders.remove(reader))
+				return;
+		}
+		reader.mAutoConnect.dispose();
+		reader.mApi.setListener(null);
+		reader.mApi.dispose();
+	}
+
+	/**
+	 * @return Snapshot of the readers.
+	 */
+	public synchronized List<Reader> getReaders()
+	{
+		return new ArrayList<>(mReaders);
+	}
+
+	/**
+	 * @return Number of connected readers.
+	 */
+	public synchronized int getConnectedCount()
+	{
+		int n = 0;
+		for (Reader r : mReaders) {
+			if (r.isConnected())
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Disconnect and remove all readers and stop the fleet threads.
+	 */
+	public void shutdown()
+	{
+		for (Reader r : getReaders())
+			removeReader(r);
+		mExecutor.shutdownNow();
+		mDispatcher.shutdown();
+	}
+
+	private void dispatch(Runnable r)
+	{
+		if (mListener == null)
+			return;
+		try {
+			mDispatcher.execute(r);
+		} catch (Exception e) {
+			// Shut down
+		}
+	}
+
+	/** Updates reader health and forwards the interesting events to the merged stream. */
+	private class ForwardingListener implements NurApiListener
+	{
+		private final Reader mReader;
+
+		ForwardingListener(Reader reader)
+		{
+			mReader = reader;
+		}
+
+		@Override
+		public void connectedEvent()
+		{
+			mReader.mConnectedSince = System.currentTimeMillis();
+			dispatch(() -> {
+				Listener l = mListener;
+				if (l != null)
+					l.onConnected(mReader);
+			});
+		}
+
+		@Override
+		public void disconnectedEvent()
+		{
+			if (mReader.mConnectedSince != 0) {
+				mReader.mConnectedSince = 0;
+				mReader.mLastLostTime = System.currentTimeMillis();
+				mReader.mDisconnectCount++;
+			}
+			dispatch(() -> {
+				Listener l = mListener;
+				if (l != null)
+					l.onDisconnected(mReader);
+			});
+		}
+
+		@Override
+		public void inventoryStreamEvent(final NurEventInventory event)
+		{
+			dispatch(() -> {
+				Listener l = mListener;
+				if (l != null)
+					l.onInventoryStream(mReader, event);
+			});
+		}
+
+		@Override
+		public void triggeredReadEvent(final NurEventTriggeredRead event)
+		{
+			dispatch(() -> {
+				Listener l = mListener;
+				if (l != null)
+					l.onTriggeredRead(mReader, event);
+			});
+		}
+
+		@Override
+		public void IOChangeEvent(final NurEventIOChange event)
+		{
+			dispatch(() -> {
+				Listener l = mListener;
+				if (l != null)
+					l.onIOChange(mReader, event);
+			});
+		}
+
+		@Override
+		public void logEvent(int level, String txt) { }
+
+		@Override
+		public void bootEvent(String event) { }
+
+		@Override
+		public void traceTagEvent(NurEventTraceTag event) { }
+
+		@Override
+		public void frequencyHopEvent(NurEventFrequencyHop event) { }
+
+		@Override
+		public void debugMessageEvent(String event) { }
+
+		@Override
+		public void inventoryExtendedStreamEvent(NurEventInventory event) { }
+
+		@Override
+		public void programmingProgressEvent(NurEventProgrammingProgress event) { }
+
+		@Override
+		public void deviceSearchEvent(NurEventDeviceInfo event) { }
+
+		@Override
+		public void clientConnectedEvent(NurEventClientInfo event) { }
+
+		@Override
+		public void clientDisconnectedEvent(NurEventClientInfo event) { }
+
+		@Override
+		public void nxpEasAlarmEvent(NurEventNxpAlarm event) { }
+
+		@Override
+		public void epcEnumEvent(NurEventEpcEnum event) { }
+
+		@Override
+		public void autotuneEvent(NurEventAutotune event) { }
+
+		@Override
+		public void tagTrackingScanEvent(NurEventTagTrackingData event) { }
+
+		@Override
+		public void tagTrackingChangeEvent(NurEventTagTrackingChange event) { }
+	}
+}
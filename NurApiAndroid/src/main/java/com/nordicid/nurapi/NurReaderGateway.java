@@ -0,0 +1,562 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Shares one physical reader connection between many TCP clients.
+ * <p>
+ * The gateway owns the reader transport (USB, BLE, integrated reader or any other
+ * {@link NurApiTransport}); no NurApi instance may use the same transport at the same time.
+ * Each client connects with a normal TCP NurApi connection, e.g. {@link NurApiSocketAutoConnect}.
+ * </p>
+ * <p>
+ * Unsolicited packets from the reader (inventory stream, trigger and other events) are sent to every client.
+ * Command packets from clients are executed one at a time, taking turns between clients in round robin order,
+ * and the response is returned to the client that sent the command.
+ * </p>
+ * <p>
+ * Reader packets requesting an ACK are acknowledged by the gateway; ACKs sent by clients are dropped.
+ * Each client has a bounded send queue and its own writer thread, so a slow client cannot stall
+ * the reader; a client whose queue fills up is disconnected.
+ * By default the gateway listens on the loopback interface only, see {@link #setBindAddress(InetAddress)}.
+ * </p>
+ */
+public class NurReaderGateway
+{
+	static final String TAG = "NurReaderGateway";
+
+	/** Default TCP port, same as used by Nordic ID fixed readers. */
+	public static final int DEFAULT_PORT = 4333;
+
+	/** Default time to wait for a command response before serving the next client. */
+	public static final int DEFAULT_RESPONSE_TIMEOUT = 10000;
+
+	/** Default number of packets queued for a client before it is considered too slow and disconnected. */
+	public static final int DEFAULT_SEND_QUEUE_SIZE = 512;
+
+	/** ACK packet as sent by NurApi, written to the reader by the gateway on behalf of all clients. */
+	static final byte[] ACK_PACKET = { (byte) 0xA5, 0x03, 0x00, 0x00, 0x00, 0x59, 0x02, (byte) 0xB2, (byte) 0xC1 };
+
+	static final int HEADER_SIZE = 6;
+	static final int MAX_PACKET_SIZE = 8 * 1024;
+
+	private final NurApiTransport mReader;
+	private final int mPort;
+	private int mResponseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+	private int mSendQueueSize = DEFAULT_SEND_QUEUE_SIZE;
+	private InetAddress mBindAddress = InetAddress.getLoopbackAddress();
+
+	private ServerSocket mServer = null;
+	private volatile boolean mRunning = false;
+	private Thread mAcceptThread = null;
+	private Thread mReaderThread = null;
+	private Thread mDispatchThread = null;
+
+	private final List<Client> mClients = new ArrayList<>();
+	private final Object mLock = new Object();
+	private int mNextClient = 0;
+	private Client mCommandOwner = null;
+	private long mCommandDeadline = 0;
+
+	/**
+	 * Create gateway for a reader.
+	 * @param reader Transport to the physical reader, connected by {@link #start()} if not connected yet.
+	 * @param port TCP port to listen.
+	 */
+	public NurReaderGateway(NurApiTransport reader, int port)
+	{
+		mReader = reader;
+		mPort = port;
+	}
+
+	/**
+	 * Set time to wait for a command response before the next client is served.
+	 * @param ms Timeout in milliseconds.
+	 */
+	public void setResponseTimeout(int ms)
+	{
+		mResponseTimeout = Math.max(1, ms);
+	}
+
+	public int getResponseTimeout()
+	{
+		return mResponseTimeout;
+	}
+
+	/**
+	 * Set number of packets buffered for each client. A client that falls this far behind is disconnected.
+	 * Applied to clients connecting after the call.
+	 * @param packets Queue size in packets.
+	 */
+	public void setSendQueueSize(int packets)
+	{
+		mSendQueueSize = Math.max(1, packets);
+	}
+
+	public int getSendQueueSize()
+	{
+		return mSendQueueSize;
+	}
+
+	/**
+	 * Set local address to listen on. Applied on next {@link #start()}.
+	 * @param addr Interface address, null to accept clients on all interfaces. Default is loopback.
+	 */
+	public void setBindAddress(InetAddress addr)
+	{
+		mBindAddress = addr;
+	}
+
+	public InetAddress getBindAddress()
+	{
+		return mBindAddress;
+	}
+
+	/**
+	 * @return Number of connected clients.
+	 */
+	public int getClientCount()
+	{
+		synchronized (mLock) {
+			return mClients.size();
+		}
+	}
+
+	public boolean isRunning()
+	{
+		return mRunning;
+	}
+
+	/**
+	 * Connect the reader and start accepting clients.
+	 * @throws Exception if the reader cannot be connected or the port cannot be opened.
+	 */
+	public synchronized void start() throws Exception
+	{
+		if (mRunning)
+			return;
+
+		if (!mReader.isConnected())
+			mReader.connect();
+
+		mServer = new ServerSocket();
+		mServer.setReuseAddress(true);
+		mServer.bind(new InetSocketAddress(mBindAddress, mPort));
+		mRunning = true;
+
+		mAcceptThread = new Thread(this::acceptLoop, TAG + "-accept");
+		mReaderThread = new Thread(this::readerLoop, TAG + "-reader");
+		mDispatchThread = new Thread(this::dispatchLoop, TAG + "-dispatch");
+		mAcceptThread.start();
+		mReaderThread.start();
+		mDispatchThread.start();
+		Log.d(TAG, "started on " + mServer.getLocalSocketAddress());
+	}
+
+	/**
+	 * Disconnect all clients and the reader and stop the gateway.
+	 */
+	public synchronized void stop()
+	{
+		if (!mRunning)
+			return;
+		mRunning = false;
+
+		try {
+			mServer.close();
+		} catch (Exception ignored) { }
+
+		List<Client> clients;
+		synchronized (mLock) {
+			clients = new ArrayList<>(mClients);
+			mLock.notifyAll();
+		}
+		for (Client c : clients)
+			c.mTransport.disconnect();
+
+		mReader.disconnect();
+
+		joinQuietly(mAcceptThread);
+		joinQuietly(mReaderThread);
+		joinQuietly(mDispatchThread);
+		Log.d(TAG, "stopped");
+	}
+
+	private static void joinQuietly(Thread t)
+	{
+		try {
+			if (t != null && t != Thread.currentThread())
+				t.join(5000);
+		} catch (InterruptedException ignored) { }
+	}
+
+	private void acceptLoop()
+	{
+		while (mRunning)
+		{
+			try {
+				Socket s = mServer.accept();
+				s.setTcpNoDelay(true);
+				NurApiSocketTransport tr = new NurApiSocketTransport(s);
+				tr.connect();
+
+				Client c = new Client(tr, s.getRemoteSocketAddress().toString());
+				synchronized (mLock) {
+					mClients.add(c);
+				}
+				c.start();
+				Log.d(TAG, "client connected " + c.mName);
+			} catch (Exception e) {
+				if (mRunning)
+					Log.d(TAG, "accept failed: " + e.getMessage());
+			}
+		}
+	}
+
+	private void removeClient(Client c)
+	{
+		synchronized (mLock) {
+			mClients.remove(c);
+			if (mCommandOwner == c)
+				mCommandOwner = null;
+			mLock.notifyAll();
+		}
+		c.mTransport.disconnect();
+		Log.d(TAG, "client disconnected " + c.mName);
+	}
+
+	/** Reads reader packets, broadcasts unsolicited ones and routes responses to the command owner. */
+	private void readerLoop()
+	{
+		PacketFramer framer = new PacketFramer();
+		byte[] buf = new byte[4096];
+		while (mRunning && mReader.isConnected())
+		{
+			int r;
+			try {
+				r = mReader.readData(buf);
+			} catch (Exception e) {
+				Log.d(TAG, "reader read failed: " + e.getMessage());
+				break;
+			}
+			if (r <= 0)
+				continue;
+
+			framer.append(buf, r);
+			byte[] pkt;
+			while ((pkt = framer.next()) != null)
+			{
+				// Acknowledge once here, clients' own ACKs are dropped
+				if ((PacketFramer.getFlags(pkt) & NurPacket.FLAG_ACK) != 0)
+					writeToReader(ACK_PACKET);
+
+				if ((PacketFramer.getFlags(pkt) & NurPacket.FLAG_UNSOL) != 0) {
+					broadcast(pkt);
+					continue;
+				}
+
+				Client owner;
+				synchronized (mLock) {
+					owner = mCommandOwner;
+					mCommandOwner = null;
+					mLock.notifyAll();
+				}
+				if (owner != null)
+					owner.send(pkt);
+			}
+		}
+
+		Log.d(TAG, "reader disconnected");
+		if (mRunning)
+			new Thread(this::stop).start();
+	}
+
+	private void broadcast(byte[] pkt)
+	{
+		List<Client> clients;
+		synchronized (mLock) {
+			clients = new ArrayList<>(mClients);
+		}
+		for (Client c : clients)
+			c.send(pkt);
+	}
+
+	/** Runs queued client commands one at a time in round robin order. */
+	private void dispatchLoop()
+	{
+		while (mRunning)
+		{
+			byte[] cmd;
+			synchronized (mLock)
+			{
+				Client next = null;
+				if (mCommandOwner != null && System.currentTimeMillis() >= mCommandDeadline) {
+					Log.d(TAG, "response timeout for " + mCommandOwner.mName);
+					mCommandOwner = null;
+				}
+				if (mCommandOwner == null)
+					next = pickNextClient();
+
+				if (next == null) {
+					long wait = mCommandOwner != null ? Math.max(1, mCommandDeadline - System.currentTimeMillis()) : 0;
+					try {
+						mLock.wait(wait);
+					} catch (InterruptedException e) {
+						break;
+					}
+					continue;
+				}
+
+				cmd = next.mQueue.poll();
+				mCommandOwner = next;
+				mCommandDeadline = System.currentTimeMillis() + mResponseTimeout;
+			}
+
+			writeToReader(cmd);
+		}
+	}
+
+	/** Caller holds mLock. */
+	private Client pickNextClient()
+	{
+		int n = mClients.size();
+		for (int i = 0; i < n; i++)
+		{
+			Client c = mClients.get((mNextClient + i) % n);
+			if (!c.mQueue.isEmpty()) {
+				mNextClient = (mNextClient + i + 1) % n;
+				return c;
+			}
+		}
+		return null;
+	}
+
+	private void writeToReader(byte[] pkt)
+	{
+		try {
+			synchronized (mReader) {
+				mReader.writeData(pkt, pkt.length);
+			}
+		} catch (Exception e) {
+			Log.d(TAG, "reader write failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * One connected client.
+	 */
+	private class Client implements Runnable
+	{
+		final NurApiSocketTransport mTransport;
+		final String mName;
+		final ArrayDeque<byte[]> mQueue = new ArrayDeque<>();
+		final BlockingQueue<byte[]> mSendQueue = new ArrayBlockingQueue<>(mSendQueueSize);
+
+		Client(NurApiSocketTransport transport, String name)
+		{
+			mTransport = transport;
+			mName = name;
+		}
+
+		void start()
+		{
+			new Thread(this, TAG + "-client").start();
+			new Thread(this::writeLoop, TAG + "-client-tx").start();
+		}
+
+		/** Queue packet to the client, never blocks the caller. */
+		void send(byte[] pkt)
+		{
+			if (!mSendQueue.offer(pkt)) {
+				Log.d(TAG, "client " + mName + " too slow, disconnecting");
+				mTransport.disconnect();
+			}
+		}
+
+		private void writeLoop()
+		{
+			while (mRunning && mTransport.isConnected())
+			{
+				byte[] pkt;
+				try {
+					pkt = mSendQueue.poll(250, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (pkt != null && mTransport.writeData(pkt, pkt.length) < 0) {
+					mTransport.disconnect();
+					break;
+				}
+			}
+			mSendQueue.clear();
+		}
+
+		@Override
+		public void run()
+		{
+			PacketFramer framer = new PacketFramer();
+			byte[] buf = new byte[4096];
+			while (mRunning && mTransport.isConnected())
+			{
+				int r;
+				try {
+					r = mTransport.readData(buf);
+				} catch (Exception e) {
+					break;
+				}
+				if (r <= 0)
+					continue;
+
+				framer.append(buf, r);
+				byte[] pkt;
+				while ((pkt = framer.next()) != null)
+				{
+					// Gateway already acknowledged the reader, one ACK per packet is enough
+					if (Arrays.equals(pkt, ACK_PACKET))
+						continue;
+					synchronized (mLock) {
+						mQueue.offer(pkt);
+						mLock.notifyAll();
+					}
+				}
+			}
+			removeClient(this);
+		}
+	}
+
+	/**
+	 * Splits a NUR byte stream into packets: 0xA5, payload length (LE word), flags (LE word),
+	 * header checksum and payload. Garbage before a valid header is skipped.
+	 * Consumed bytes are only moved when more space is needed, not after every packet.
+	 */
+	static class PacketFramer
+	{
+		private final byte[] mBuf = new byte[MAX_PACKET_SIZE * 2];
+		private int mStart = 0;
+		private int mCount = 0;
+
+		void append(byte[] data, int len)
+		{
+			append(data, 0, len);
+		}
+
+		void append(byte[] data, int off, int len)
+		{
+			if (mStart + mCount + len > mBuf.length && mStart > 0) {
+				System.arraycopy(mBuf, mStart, mBuf, 0, mCount);
+				mStart = 0;
+			}
+			if (mCount + len > mBuf.length) {
+				Log.d(TAG, "framer overflow, dropping " + mCount + " bytes");
+				mStart = 0;
+				mCount = 0;
+				if (len > mBuf.length)
+					return;
+			}
+			System.arraycopy(data, off, mBuf, mStart + mCount, len);
+			mCount += len;
+		}
+
+		void reset()
+		{
+			mStart = 0;
+			mCount = 0;
+		}
+
+		/** @return Next complete packet or null. */
+		byte[] next()
+		{
+			int total = nextLength();
+			if (total < 0)
+				return null;
+			byte[] pkt = new byte[total];
+			System.arraycopy(mBuf, mStart, pkt, 0, total);
+			discard(total);
+			return pkt;
+		}
+
+		/**
+		 * Take next complete packet without allocating.
+		 * @param dst Receives the first dst.length bytes of the packet, e.g. only the header and command byte.
+		 * @return Packet length, -1 if no complete packet.
+		 */
+		int next(byte[] dst)
+		{
+			int total = nextLength();
+			if (total < 0)
+				return -1;
+			System.arraycopy(mBuf, mStart, dst, 0, Math.min(total, dst.length));
+			discard(total);
+			return total;
+		}
+
+		/** Skip to next valid header. @return Length of the complete packet at the start, -1 if none yet. */
+		private int nextLength()
+		{
+			while (mCount >= HEADER_SIZE)
+			{
+				if ((mBuf[mStart] & 0xFF) != 0xA5 || !headerValid()) {
+					discard(1);
+					continue;
+				}
+
+				int total = HEADER_SIZE + ((mBuf[mStart + 1] & 0xFF) | ((mBuf[mStart + 2] & 0xFF) << 8));
+				if (total > MAX_PACKET_SIZE) {
+					discard(1);
+					continue;
+				}
+				return mCount < total ? -1 : total;
+			}
+			return -1;
+		}
+
+		private boolean headerValid()
+		{
+			int cs = 0xFF;
+			for (int i = 0; i < HEADER_SIZE - 1; i++)
+				cs ^= mBuf[mStart + i];
+			return (cs & 0xFF) == (mBuf[mStart + HEADER_SIZE - 1] & 0xFF);
+		}
+
+		private void discard(int n)
+		{
+			mStart += n;
+			mCount -= n;
+			if (mCount == 0)
+				mStart = 0;
+		}
+
+		static int getFlags(byte[] pkt)
+		{
+			return (pkt[3] & 0xFF) | ((pkt[4] & 0xFF) << 8);
+		}
+	}
+}
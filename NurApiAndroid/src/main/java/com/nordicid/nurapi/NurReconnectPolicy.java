@@ -0,0 +1,220 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reconnection schedule for auto connect transports.
+ * First retries are made quickly, after that the delay grows exponentially with
+ * decorrelated jitter up to a maximum, so many clients losing the same readers do not retry in lockstep.
+ * Optionally a TCP reachability probe is made before the full NurApi connect.
+ * Note that each successful probe opens and drops a complete TCP session on the reader,
+ * so after {@link #DEFAULT_MAX_PROBE_FAILURES} failed probes in a row probing is skipped and
+ * every attempt goes straight to the full connect until the next {@link #reset()}.
+ */
+public class NurReconnectPolicy
+{
+	/** Default minimum retry delay in milliseconds. */
+	public static final int DEFAULT_BASE_DELAY = 250;
+	/** Default maximum retry delay in milliseconds. */
+	public static final int DEFAULT_MAX_DELAY = 30000;
+	/** Default number of retries made with the base delay. */
+	public static final int DEFAULT_FAST_RETRIES = 2;
+	/** Default reachability probe timeout, 0 to use the transport connect timeout. */
+	public static final int DEFAULT_PROBE_TIMEOUT = 0;
+	/** Default number of consecutive failed probes after which probing is skipped. */
+	public static final int DEFAULT_MAX_PROBE_FAILURES = 3;
+
+	private final int mBaseDelay;
+	private final int mMaxDelay;
+	private final int mFastRetries;
+	private boolean mProbeEnabled = true;
+	private int mProbeTimeout = DEFAULT_PROBE_TIMEOUT;
+	private int mMaxProbeFailures = DEFAULT_MAX_PROBE_FAILURES;
+	private int mProbeFailures = 0;
+
+	private int mAttempt = 0;
+	private long mPrevDelay;
+
+	/**
+	 * Create policy with default schedule.
+	 */
+	public NurReconnectPolicy()
+	{
+		this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_FAST_RETRIES);
+	}
+
+	/**
+	 * Create policy with given schedule.
+	 * @param baseDelay Minimum delay between attempts in milliseconds.
+	 * @param maxDelay Maximum delay between attempts in milliseconds.
+	 * @param fastRetries Number of first retries made with the base delay before backing off.
+	 */
+	public NurReconnectPolicy(int baseDelay, int maxDelay, int fastRetries)
+	{
+		mBaseDelay = Math.max(1, baseDelay);
+		mMaxDelay = Math.max(mBaseDelay, maxDelay);
+		mFastRetries = Math.max(0, fastRetries);
+		mPrevDelay = mBaseDelay;
+	}
+
+	/**
+	 * Enable or disable TCP reachability probe before the full connect.
+	 * The timeout covers both name resolution and TCP connect, so a short value
+	 * makes slow DNS or a slow network look like an unreachable reader.
+	 * @param enable true to probe.
+	 * @param timeout Probe timeout in milliseconds, 0 to use the transport connect timeout.
+	 */
+	public void setProbe(boolean enable, int timeout)
+	{
+		mProbeEnabled = enable;
+		mProbeTimeout = Math.max(0, timeout);
+	}
+
+	/**
+	 * Set number of consecutive failed probes after which attempts skip the probe.
+	 * @param failures Failure count, 0 to never skip.
+	 */
+	public synchronized void setMaxProbeFailures(int failures)
+	{
+		mMaxProbeFailures = Math.max(0, failures);
+	}
+
+	public synchronized int getMaxProbeFailures()
+	{
+		return mMaxProbeFailures;
+	}
+
+	public boolean isProbeEnabled()
+	{
+		return mProbeEnabled;
+	}
+
+	/**
+	 * @return true if the next attempt should probe first.
+	 */
+	public synchronized boolean shouldProbe()
+	{
+		return mProbeEnabled && (mMaxProbeFailures == 0 || mProbeFailures < mMaxProbeFailures);
+	}
+
+	/**
+	 * Record result of a reachability probe.
+	 * @param ok true if the probe succeeded.
+	 */
+	public synchronized void onProbeResult(boolean ok)
+	{
+		mProbeFailures = ok ? 0 : mProbeFailures + 1;
+	}
+
+	/**
+	 * @return Consecutive failed probes since the last successful one or {@link #reset()}.
+	 */
+	public synchronized int getProbeFailures()
+	{
+		return mProbeFailures;
+	}
+
+	public int getProbeTimeout()
+	{
+		return mProbeTimeout;
+	}
+
+	/**
+	 * @param connectTimeout Transport connect timeout in milliseconds.
+	 * @return Probe timeout to use with the given connect timeout.
+	 */
+	public int getProbeTimeout(int connectTimeout)
+	{
+		return mProbeTimeout > 0 ? mProbeTimeout : connectTimeout;
+	}
+
+	public int getBaseDelay()
+	{
+		return mBaseDelay;
+	}
+
+	public int getMaxDelay()
+	{
+		return mMaxDelay;
+	}
+
+	/**
+	 * @return Number of failed attempts since last {@link #reset()}.
+	 */
+	public synchronized int getAttempt()
+	{
+		return mAttempt;
+	}
+
+	/**
+	 * Get delay before the next attempt and advance the schedule.
+	 * @return Delay in milliseconds.
+	 */
+	public synchronized long nextDelay()
+	{
+		mAttempt++;
+		if (mAttempt <= mFastRetries) {
+			mPrevDelay = mBaseDelay;
+			return mBaseDelay;
+		}
+
+		// Decorrelated jitter: random between base and 3x previous delay, capped
+		long upper = Math.min((long) mMaxDelay, mPrevDelay * 3);
+		long delay = upper <= mBaseDelay ? mBaseDelay : ThreadLocalRandom.current().nextLong(mBaseDelay, upper + 1);
+		mPrevDelay = delay;
+		return delay;
+	}
+
+	/**
+	 * Restart the schedule, called after a successful connection.
+	 */
+	public synchronized void reset()
+	{
+		mAttempt = 0;
+		mPrevDelay = mBaseDelay;
+		mProbeFailures = 0;
+	}
+
+	/**
+	 * Check if anything accepts TCP connections at the given address.
+	 * Interrupting the calling thread aborts the check right away.
+	 * @param host Host name or IP address.
+	 * @param port TCP port.
+	 * @param timeout Connect timeout in milliseconds.
+	 * @return true if TCP connection could be opened.
+	 */
+	public static boolean probe(String host, int port, int timeout)
+	{
+		SocketChannel ch = null;
+		try {
+			// Channel backed socket is interruptible, unlike a plain Socket
+			ch = SocketChannel.open();
+			ch.socket().connect(NurHostResolver.getShared().resolve(host, port, timeout), timeout);
+			return true;
+		} catch (Exception e) {
+			return false;
+		} finally {
+			try {
+				if (ch != null)
+					ch.close();
+			} catch (Exception ignored) { }
+		}
+	}
+}
@@ -0,0 +1,336 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import android.util.Log;
+
+import com.nordicid.nuraccessory.NurAccessoryConfig;
+import com.nordicid.nuraccessory.NurAccessoryExtension;
+
+/**
+ * Reader session state that is restored after a reconnect.
+ * <p>
+ * Module setup and accessory configuration applied through this class (or recorded with
+ * {@link #recordModuleSetup} / {@link #recordAccessoryConfig}) are compared against the reader after
+ * a reconnect and only the values that differ are written back, in a single setup command.
+ * An inventory stream that was running when the connection was lost is restarted.
+ * </p>
+ */
+public class NurSessionState
+{
+	static final String TAG = "NurSessionState";
+
+	private final NurApi mApi;
+	private final NurSetup mSetup = new NurSetup();
+	private int mSetupFlags = 0;
+	private NurAccessoryExtension mAccessory = null;
+	private NurAccessoryConfig mAccessoryConfig = null;
+	private boolean mRestartStream = true;
+	private boolean mStreamWasRunning = false;
+
+	private long mLastRestoreTime = -1;
+	private int mLastRestoredFlags = 0;
+
+	public NurSessionState(NurApi api)
+	{
+		mApi = api;
+	}
+
+	/**
+	 * Write module setup to the reader and record it for restoring.
+	 * @param setup Setup values.
+	 * @param flags NurApi.SETUP_* flags of the values to write.
+	 * @return Setup returned by the reader.
+	 * @throws Exception on error.
+	 */
+	public NurSetup setModuleSetup(NurSetup setup, int flags) throws Exception
+	{
+		NurSetup ret = mApi.setModuleSetup(setup, flags);
+		recordModuleSetup(setup, flags);
+		return ret;
+	}
+
+	/**
+	 * Record module setup that the application wrote to the reader directly.
+	 * Values are merged with previously recorded ones.
+	 * @param setup Setup values.
+	 * @param flags NurApi.SETUP_* flags of the recorded values.
+	 */
+	public synchronized void recordModuleSetup(NurSetup setup, int flags)
+	{
+		flags &= NurApi.SETUP_ALL;
+		copySetup(setup, mSetup, flags);
+		mSetupFlags |= flags;
+	}
+
+	/**
+	 * Write accessory configuration and record it for restoring.
+	 * @param acc Accessory extension of the reader.
+	 * @param cfg Configuration.
+	 * @throws Exception on error.
+	 */
+	public void setAccessoryConfig(NurAccessoryExtension acc, NurAccessoryConfig cfg) throws Exception
+	{
+		acc.setConfig(cfg);
+		recordAccessoryConfig(acc, cfg);
+	}
+
+	/**
+	 * Record accessory configuration that the application wrote directly.
+	 * @param acc Accessory extension of the reader.
+	 * @param cfg Configuration, null to stop restoring accessory configuration.
+	 */
+	public synchronized void recordAccessoryConfig(NurAccessoryExtension acc, NurAccessoryConfig cfg)
+	{
+		mAccessory = cfg != null ? acc : null;
+		mAccessoryConfig = cfg;
+	}
+
+	/**
+	 * Enable or disable restarting an inventory stream that was running when the connection was lost.
+	 * @param restart true to restart, default true.
+	 */
+	public synchronized void setRestartInventoryStream(boolean restart)
+	{
+		mRestartStream = restart;
+	}
+
+	public synchronized boolean getRestartInventoryStream()
+	{
+		return mRestartStream;
+	}
+
+	/**
+	 * Forget all recorded state.
+	 */
+	public synchronized void clear()
+	{
+		mSetupFlags = 0;
+		mAccessory = null;
+		mAccessoryConfig = null;
+		mStreamWasRunning = false;
+	}
+
+	/**
+	 * @return NurApi.SETUP_* flags of the recorded setup values.
+	 */
+	public synchronized int getRecordedSetupFlags()
+	{
+		return mSetupFlags;
+	}
+
+	/**
+	 * @return Duration of the last restore in milliseconds, -1 if nothing restored yet.
+	 */
+	public synchronized long getLastRestoreTime()
+	{
+		return mLastRestoreTime;
+	}
+
+	/**
+	 * @return NurApi.SETUP_* flags of the values that differed and were written in the last restore.
+	 */
+	public synchronized int getLastRestoredFlags()
+	{
+		return mLastRestoredFlags;
+	}
+
+	/**
+	 * Called when the connection is lost, before NurApi has noticed it and cleared its stream state.
+	 */
+	synchronized void onConnectionLost()
+	{
+		if (mApi.isInventoryStreamRunning())
+			mStreamWasRunning = true;
+	}
+
+	/**
+	 * Restore recorded state to the reader. Called after a reconnect.
+	 * Failures are logged, the connection is kept.
+	 */
+	void restore()
+	{
+		// Snapshot so that reader commands run without holding the lock
+		NurSetup setup = new NurSetup();
+		int setupFlags;
+		NurAccessoryExtension acc;
+		NurAccessoryConfig accCfg;
+		boolean restartStream;
+		synchronized (this) {
+			setupFlags = mSetupFlags;
+			copySetup(mSetup, setup, setupFlags);
+			acc = mAccessory;
+			accCfg = mAccessoryConfig;
+			restartStream = mStreamWasRunning && mRestartStream;
+			mStreamWasRunning = false;
+		}
+		if (setupFlags == 0 && accCfg == null && !restartStream)
+			return;
+
+		long start = System.currentTimeMillis();
+		int restored = 0;
+
+		if (setupFlags != 0)
+		{
+			try {
+				NurSetup current = mApi.getModuleSetup(setupFlags);
+				restored = diffSetup(setup, current, setupFlags);
+				if (restored != 0)
+					mApi.setModuleSetup(setup, restored);
+				Log.d(TAG, "setup restored, flags 0x" + Integer.toHexString(restored) + " of 0x" + Integer.toHexString(setupFlags));
+			} catch (Exception e) {
+				Log.d(TAG, "setup restore failed: " + e.getMessage());
+			}
+		}
+
+		if (accCfg != null)
+		{
+			try {
+				if (!accessoryConfigEquals(accCfg, acc.getConfig()))
+					acc.setConfig(accCfg);
+			} catch (Exception e) {
+				Log.d(TAG, "accessory config restore failed: " + e.getMessage());
+			}
+		}
+
+		if (restartStream)
+		{
+			try {
+				mApi.startInventoryStream();
+				Log.d(TAG, "inventory stream restarted");
+			} catch (Exception e) {
+				Log.d(TAG, "inventory stream restart failed: " + e.getMessage());
+			}
+		}
+
+		synchronized (this) {
+			mLastRestoredFlags = restored;
+			mLastRestoreTime = System.currentTimeMillis() - start;
+		}
+	}
+
+	private static boolean accessoryConfigEquals(NurAccessoryConfig a, NurAccessoryConfig b)
+	{
+		return b != null && a.configValue == b.configValue && a.flags == b.flags
+				&& a.hidBarcodeTimeout == b.hidBarcodeTimeout && a.hidRFIDTimeout == b.hidRFIDTimeout
+				&& a.hidRFIDMaxTags == b.hidRFIDMaxTags && Objects.equals(a.name, b.name);
+	}
+
+	/** @return Flags of the values that differ between a and b. */
+	static int diffSetup(NurSetup a, NurSetup b, int flags)
+	{
+		int diff = 0;
+		for (int bit = 1; bit <= NurApi.SETUP_ALL && bit > 0; bit <<= 1)
+		{
+			if ((flags & bit) != 0 && !setupEquals(a, b, bit))
+				diff |= bit;
+		}
+		return diff;
+	}
+
+	private static boolean setupEquals(NurSetup a, NurSetup b, int bit)
+	{
+		switch (bit)
+		{
+			case NurApi.SETUP_LINKFREQ: return a.linkFreq == b.linkFreq;
+			case NurApi.SETUP_RXDEC: return a.rxDecoding == b.rxDecoding;
+			case NurApi.SETUP_TXLEVEL: return a.txLevel == b.txLevel;
+			case NurApi.SETUP_TXMOD: return a.txModulation == b.txModulation;
+			case NurApi.SETUP_REGION: return a.regionId == b.regionId;
+			case NurApi.SETUP_INVQ: return a.inventoryQ == b.inventoryQ;
+			case NurApi.SETUP_INVSESSION: return a.inventorySession == b.inventorySession;
+			case NurApi.SETUP_INVROUNDS: return a.inventoryRounds == b.inventoryRounds;
+			case NurApi.SETUP_ANTMASK: return a.antennaMask == b.antennaMask;
+			case NurApi.SETUP_SCANSINGLETO: return a.scanSingleTriggerTimeout == b.scanSingleTriggerTimeout;
+			case NurApi.SETUP_INVENTORYTO: return a.inventoryTriggerTimeout == b.inventoryTriggerTimeout;
+			case NurApi.SETUP_SELECTEDANT: return a.selectedAntenna == b.selectedAntenna;
+			case NurApi.SETUP_OPFLAGS: return a.opFlags == b.opFlags;
+			case NurApi.SETUP_INVTARGET: return a.inventoryTarget == b.inventoryTarget;
+			case NurApi.SETUP_INVEPCLEN: return a.inventoryEpcLength == b.inventoryEpcLength;
+			case NurApi.SETUP_READRSSIFILTER: return rssiEquals(a.readRssiFilter, b.readRssiFilter);
+			case NurApi.SETUP_WRITERSSIFILTER: return rssiEquals(a.writeRssiFilter, b.writeRssiFilter);
+			case NurApi.SETUP_INVRSSIFILTER: return rssiEquals(a.inventoryRssiFilter, b.inventoryRssiFilter);
+			case NurApi.SETUP_READTIMEOUT: return a.readTimeout == b.readTimeout;
+			case NurApi.SETUP_WRITETIMEOUT: return a.writeTimeout == b.writeTimeout;
+			case NurApi.SETUP_LOCKTIMEOUT: return a.lockTimeout == b.lockTimeout;
+			case NurApi.SETUP_KILLTIMEOUT: return a.killTimeout == b.killTimeout;
+			case NurApi.SETUP_AUTOPERIOD: return a.periodSetup == b.periodSetup;
+			case NurApi.SETUP_PERANTPOWER: return Arrays.equals(a.antPower, b.antPower);
+			case NurApi.SETUP_PERANTOFFSET: return a.powerOffset == b.powerOffset;
+			case NurApi.SETUP_ANTMASKEX: return a.antennaMaskEx == b.antennaMaskEx;
+			case NurApi.SETUP_AUTOTUNE:
+				if (a.autotune == null || b.autotune == null)
+					return a.autotune == b.autotune;
+				return a.autotune.mode == b.autotune.mode && a.autotune.thresholddBm == b.autotune.thresholddBm;
+			case NurApi.SETUP_PERANTPOWER_EX: return Arrays.equals(a.antPowerEx, b.antPowerEx);
+			case NurApi.SETUP_RXSENS: return a.rxSensitivity == b.rxSensitivity;
+			case NurApi.SETUP_RFPROFILE: return a.rfProfile == b.rfProfile;
+			default: return true;
+		}
+	}
+
+	private static boolean rssiEquals(RssiFilter a, RssiFilter b)
+	{
+		if (a == null || b == null)
+			return a == b;
+		return a.min == b.min && a.max == b.max;
+	}
+
+	/** Copy values selected by flags, with own copies of arrays and filter objects. */
+	static void copySetup(NurSetup src, NurSetup dst, int flags)
+	{
+		if ((flags & NurApi.SETUP_LINKFREQ) != 0) dst.linkFreq = src.linkFreq;
+		if ((flags & NurApi.SETUP_RXDEC) != 0) dst.rxDecoding = src.rxDecoding;
+		if ((flags & NurApi.SETUP_TXLEVEL) != 0) dst.txLevel = src.txLevel;
+		if ((flags & NurApi.SETUP_TXMOD) != 0) dst.txModulation = src.txModulation;
+		if ((flags & NurApi.SETUP_REGION) != 0) dst.regionId = src.regionId;
+		if ((flags & NurApi.SETUP_INVQ) != 0) dst.inventoryQ = src.inventoryQ;
+		if ((flags & NurApi.SETUP_INVSESSION) != 0) dst.inventorySession = src.inventorySession;
+		if ((flags & NurApi.SETUP_INVROUNDS) != 0) dst.inventoryRounds = src.inventoryRounds;
+		if ((flags & NurApi.SETUP_ANTMASK) != 0) dst.antennaMask = src.antennaMask;
+		if ((flags & NurApi.SETUP_SCANSINGLETO) != 0) dst.scanSingleTriggerTimeout = src.scanSingleTriggerTimeout;
+		if ((flags & NurApi.SETUP_INVENTORYTO) != 0) dst.inventoryTriggerTimeout = src.inventoryTriggerTimeout;
+		if ((flags & NurApi.SETUP_SELECTEDANT) != 0) dst.selectedAntenna = src.selectedAntenna;
+		if ((flags & NurApi.SETUP_OPFLAGS) != 0) dst.opFlags = src.opFlags;
+		if ((flags & NurApi.SETUP_INVTARGET) != 0) dst.inventoryTarget = src.inventoryTarget;
+		if ((flags & NurApi.SETUP_INVEPCLEN) != 0) dst.inventoryEpcLength = src.inventoryEpcLength;
+		if ((flags & NurApi.SETUP_READRSSIFILTER) != 0) dst.readRssiFilter = copyRssi(src.readRssiFilter);
+		if ((flags & NurApi.SETUP_WRITERSSIFILTER) != 0) dst.writeRssiFilter = copyRssi(src.writeRssiFilter);
+		if ((flags & NurApi.SETUP_INVRSSIFILTER) != 0) dst.inventoryRssiFilter = copyRssi(src.inventoryRssiFilter);
+		if ((flags & NurApi.SETUP_READTIMEOUT) != 0) dst.readTimeout = src.readTimeout;
+		if ((flags & NurApi.SETUP_WRITETIMEOUT) != 0) dst.writeTimeout = src.writeTimeout;
+		if ((flags & NurApi.SETUP_LOCKTIMEOUT) != 0) dst.lockTimeout = src.lockTimeout;
+		if ((flags & NurApi.SETUP_KILLTIMEOUT) != 0) dst.killTimeout = src.killTimeout;
+		if ((flags & NurApi.SETUP_AUTOPERIOD) != 0) dst.periodSetup = src.periodSetup;
+		if ((flags & NurApi.SETUP_PERANTPOWER) != 0) dst.antPower = src.antPower != null ? src.antPower.clone() : null;
+		if ((flags & NurApi.SETUP_PERANTOFFSET) != 0) dst.powerOffset = src.powerOffset;
+		if ((flags & NurApi.SETUP_ANTMASKEX) != 0) dst.antennaMaskEx = src.antennaMaskEx;
+		if ((flags & NurApi.SETUP_AUTOTUNE) != 0)
+			dst.autotune = src.autotune != null ? new AutotuneSetup(src.autotune.mode, src.autotune.thresholddBm) : null;
+		if ((flags & NurApi.SETUP_PERANTPOWER_EX) != 0) dst.antPowerEx = src.antPowerEx != null ? src.antPowerEx.clone() : null;
+		if ((flags & NurApi.SETUP_RXSENS) != 0) dst.rxSensitivity = src.rxSensitivity;
+		if ((flags & NurApi.SETUP_RFPROFILE) != 0) dst.rfProfile = src.rfProfile;
+	}
+
+	private static RssiFilter copyRssi(RssiFilter f)
+	{
+		return f != null ? new RssiFilter(f.min, f.max) : null;
+	}
+}
@@ -0,0 +1,302 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Selector driven I/O hub shared by many TCP reader connections.
+ * A small fixed number of I/O threads multiplex all connections created with
+ * {@link #createTransport(String, int)} and hand received bytes to each transport's receive buffer.
+ * The number of I/O threads does not grow with the number of connected readers.
+ */
+public class NurSocketHub
+{
+	static final String TAG = "NurSocketHub";
+
+	private static NurSocketHub sShared = null;
+
+	private final IoLoop[] mLoops;
+	private boolean mStarted = false;
+
+	/**
+	 * Get the process wide hub. Created on first use with one I/O thread per CPU, at most two.
+	 * @return Shared hub instance.
+	 */
+	public static synchronized NurSocketHub getShared()
+	{
+		if (sShared == null)
+			sShared = new NurSocketHub(Math.min(2, Runtime.getRuntime().availableProcessors()));
+		return sShared;
+	}
+
+	/**
+	 * Create a new hub.
+	 * @param ioThreads Number of selector threads, at least 1.
+	 */
+	public NurSocketHub(int ioThreads)
+	{
+		mLoops = new IoLoop[Math.max(1, ioThreads)];
+	}
+
+	/**
+	 * Create transport for client connection that is served by this hub.
+	 * @param host	IP address to the host NUR device.
+	 * @param port	Port to the host NUR device.
+	 * @return New transport, connected with {@link NurApiTransport#connect()}.
+	 */
+	public NurApiSocketHubTransport createTransport(String host, int port)
+	{
+		return new NurApiSocketHubTransport(this, host, port);
+	}
+
+	/**
+	 * @return Number of I/O threads in this hub.
+	 */
+	public int getIoThreadCount()
+	{
+		return mLoops.length;
+	}
+
+	/**
+	 * @return Number of connections currently registered to this hub.
+	 */
+	public int getConnectionCount()
+	{
+		int count = 0;
+		synchronized (this) {
+			for (IoLoop loop : mLoops) {
+				if (loop != null)
+					count += loop.mConnections.get();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Stop all I/O threads and close every connection served by this hub.
+	 */
+	public synchronized void shutdown()
+	{
+		for (int i = 0; i < mLoops.length; i++) {
+			if (mLoops[i] != null) {
+				mLoops[i].stop();
+				mLoops[i] = null;
+			}
+		}
+		mStarted = false;
+	}
+
+	/** Least loaded loop gets the new connection. */
+	synchronized IoLoop pickLoop() throws IOException
+	{
+		if (!mStarted) {
+			for (int i = 0; i < mLoops.length; i++) {
+				mLoops[i] = new IoLoop(i);
+				mLoops[i].start();
+			}
+			mStarted = true;
+		}
+
+		IoLoop best = mLoops[0];
+		for (IoLoop loop : mLoops) {
+			if (loop.mConnections.get() < best.mConnections.get())
+				best = loop;
+		}
+		return best;
+	}
+
+	/**
+	 * One selector and the thread running it.
+	 */
+	static class IoLoop implements Runnable
+	{
+		final Selector mSelector;
+		final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+		final AtomicInteger mConnections = new AtomicInteger(0);
+		final Thread mThread;
+		volatile boolean mRunning = true;
+		volatile boolean mExited = false;
+
+		IoLoop(int index) throws IOException
+		{
+			mSelector = Selector.open();
+			mThread = new Thread(this, TAG + "-" + index);
+			mThread.setDaemon(true);
+		}
+
+		void start()
+		{
+			mThread.start();
+		}
+
+		void stop()
+		{
+			mRunning = false;
+			mSelector.wakeup();
+		}
+
+		/** Run task in the I/O thread. */
+		void post(Runnable task)
+		{
+			mTasks.offer(task);
+			mSelector.wakeup();
+		}
+
+		void register(final NurApiSocketHubTransport tr, final SocketChannel ch, final boolean connected, final int generation)
+		{
+			mConnections.incrementAndGet();
+			post(new RegisterTask(tr, ch, connected, generation));
+			// Loop stopped before it could take the task
+			if (mExited)
+				failPending();
+		}
+
+		/** Fail connects whose registration never ran, other queued tasks are dropped. */
+		void failPending()
+		{
+			Runnable task;
+			while ((task = mTasks.poll()) != null) {
+				if (task instanceof RegisterTask)
+					((RegisterTask) task).fail();
+			}
+		}
+
+		/** Registration of a new connection, failed if the loop stops before running it. */
+		class RegisterTask implements Runnable
+		{
+			final NurApiSocketHubTransport mTransport;
+			final SocketChannel mChannel;
+			final boolean mConnected;
+			final int mGeneration;
+
+			RegisterTask(NurApiSocketHubTransport tr, SocketChannel ch, boolean connected, int generation)
+			{
+				mTransport = tr;
+				mChannel = ch;
+				mConnected = connected;
+				mGeneration = generation;
+			}
+
+			@Override
+			public void run()
+			{
+				try {
+					SelectionKey key = mChannel.register(mSelector, mConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, mTransport);
+					if (!mTransport.onRegistered(key, mGeneration)) {
+						key.cancel();
+						return;
+					}
+					if (mConnected)
+						mTransport.onConnectFinished(mGeneration, true);
+				} catch (Exception e) {
+					Log.d(TAG, "register failed: " + e.getMessage());
+					fail();
+				}
+			}
+
+			void fail()
+			{
+				mTransport.onConnectFinished(mGeneration, false);
+			}
+		}
+
+		/** Connection closed, wake up selector to flush its cancelled key. */
+		void release()
+		{
+			mConnections.decrementAndGet();
+			mSelector.wakeup();
+		}
+
+		/** Change interest ops from any thread. */
+		void setInterest(final SelectionKey key, final int ops, final boolean enable)
+		{
+			post(() -> {
+				if (!key.isValid())
+					return;
+				int cur = key.interestOps();
+				key.interestOps(enable ? (cur | ops) : (cur & ~ops));
+			});
+		}
+
+		@Override
+		public void run()
+		{
+			Log.d(TAG, "I/O thread started");
+			while (mRunning)
+			{
+				try {
+					mSelector.select();
+				} catch (Exception e) {
+					Log.d(TAG, "select failed: " + e.getMessage());
+					break;
+				}
+
+				// A failing task must not stop the loop serving every other reader
+				Runnable task;
+				while ((task = mTasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (Exception e) {
+						Log.d(TAG, "task failed: " + e.getMessage());
+					}
+				}
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					NurApiSocketHubTransport tr = (NurApiSocketHubTransport) key.attachment();
+					try {
+						if (!key.isValid())
+							continue;
+						if (key.isConnectable())
+							tr.onConnectable(key);
+						if (key.isValid() && key.isReadable())
+							tr.onReadable();
+						if (key.isValid() && key.isWritable())
+							tr.onWritable();
+					} catch (Exception e) {
+						Log.d(TAG, "I/O error: " + e.getMessage());
+						tr.onClosed();
+					}
+				}
+			}
+
+			mExited = true;
+			failPending();
+			for (SelectionKey key : mSelector.keys()) {
+				NurApiSocketHubTransport tr = (NurApiSocketHubTransport) key.attachment();
+				if (tr != null)
+					tr.onClosed();
+			}
+			try {
+				mSelector.close();
+			} catch (Exception ignored) { }
+			Log.d(TAG, "I/O thread exit");
+		}
+	}
+}
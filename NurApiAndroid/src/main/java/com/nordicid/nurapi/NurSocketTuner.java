@@ -0,0 +1,159 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures inbound and outbound rate and command round trip time of a socket connection and
+ * derives kernel buffer and read chunk sizes from them.
+ * Buffer targets are twice the bandwidth-delay product. Tuned sizes are remembered
+ * per address so the next connection can set the buffer before connect, when the TCP window scale is negotiated.
+ */
+class NurSocketTuner
+{
+	static final int MIN_RCVBUF = 16 * 1024;
+	static final int MAX_RCVBUF = 1024 * 1024;
+	static final int MIN_SNDBUF = 8 * 1024;
+	static final int MAX_SNDBUF = 256 * 1024;
+	static final int MIN_CHUNK = 4 * 1024;
+	static final int MAX_CHUNK = 64 * 1024;
+
+	/** Rate measurement window. */
+	static final long WINDOW_MS = 1000;
+
+	private static final Map<String, Integer> sRememberedRcvBuf = new ConcurrentHashMap<>();
+
+	private final String mKey;
+	private long mWindowStart = 0;
+	private long mWindowBytes = 0;
+	private long mWindowTxBytes = 0;
+	private double mRate = 0;	// bytes per second, smoothed
+	private double mTxRate = 0;
+	private double mRtt = 0;	// milliseconds, smoothed
+	private long mCmdSentTime = 0;
+	private int mRcvBuf;
+	private int mSndBuf = 0;
+	private int mChunk = MIN_CHUNK;
+
+	NurSocketTuner(String host, int port)
+	{
+		mKey = host + ":" + port;
+		Integer remembered = sRememberedRcvBuf.get(mKey);
+		mRcvBuf = remembered != null ? remembered : 0;
+	}
+
+	/**
+	 * @return Receive buffer to set before connect, 0 to leave OS default.
+	 */
+	int getInitialRcvBuf()
+	{
+		return mRcvBuf;
+	}
+
+	/** Called when data is written. */
+	synchronized void onSent(int bytes, long now)
+	{
+		if (mCmdSentTime == 0)
+			mCmdSentTime = now;
+		mWindowTxBytes += bytes;
+	}
+
+	/**
+	 * Called after every read.
+	 * @return true if buffer sizes changed and should be applied to the socket.
+	 */
+	synchronized boolean onReceived(int bytes, long now)
+	{
+		if (mCmdSentTime != 0) {
+			long rtt = now - mCmdSentTime;
+			mRtt = mRtt == 0 ? rtt : mRtt * 0.875 + rtt * 0.125;
+			mCmdSentTime = 0;
+		}
+
+		if (mWindowStart == 0)
+			mWindowStart = now;
+		mWindowBytes += bytes;
+
+		long elapsed = now - mWindowStart;
+		if (elapsed < WINDOW_MS)
+			return false;
+
+		double rate = mWindowBytes * 1000.0 / elapsed;
+		mRate = mRate == 0 ? rate : mRate * 0.75 + rate * 0.25;
+		rate = mWindowTxBytes * 1000.0 / elapsed;
+		mTxRate = mTxRate == 0 ? rate : mTxRate * 0.75 + rate * 0.25;
+		mWindowStart = now;
+		mWindowBytes = 0;
+		mWindowTxBytes = 0;
+
+		// Read chunk covers about 10 ms of traffic
+		mChunk = clamp(Integer.highestOneBit((int) Math.max(1, mRate / 100)) * 2, MIN_CHUNK, MAX_CHUNK);
+
+		double rtt = Math.max(mRtt, 1);
+		boolean changed = false;
+		int target = clamp((int) (2 * mRate * rtt / 1000), MIN_RCVBUF, MAX_RCVBUF);
+		if (needsChange(mRcvBuf, target)) {
+			mRcvBuf = target;
+			sRememberedRcvBuf.put(mKey, target);
+			changed = true;
+		}
+		target = clamp((int) (2 * mTxRate * rtt / 1000), MIN_SNDBUF, MAX_SNDBUF);
+		if (needsChange(mSndBuf, target)) {
+			mSndBuf = target;
+			changed = true;
+		}
+		return changed;
+	}
+
+	/** Only grow or shrink by at least factor of two to avoid flapping. */
+	private static boolean needsChange(int current, int target)
+	{
+		return current == 0 || target >= current * 2 || target * 2 <= current;
+	}
+
+	synchronized int getRcvBuf()
+	{
+		return mRcvBuf;
+	}
+
+	synchronized int getSndBuf()
+	{
+		return mSndBuf;
+	}
+
+	synchronized int getReadChunk()
+	{
+		return mChunk;
+	}
+
+	synchronized double getRate()
+	{
+		return mRate;
+	}
+
+	synchronized double getRtt()
+	{
+		return mRtt;
+	}
+
+	private static int clamp(int v, int min, int max)
+	{
+		return Math.max(min, Math.min(max, v));
+	}
+}
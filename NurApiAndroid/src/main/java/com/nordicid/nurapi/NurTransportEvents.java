@@ -0,0 +1,30 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+/**
+ * Interface representing the socket transports' connection events.
+ */
+public interface NurTransportEvents {
+	/**
+	 * Called once when an open connection closes, whether the remote end closed it,
+	 * an I/O error or idle timeout broke it or disconnect() was called.
+	 * May be called from the transport's read thread, must not block.
+	 * @param transport Transport whose connection was lost.
+	 */
+	void onConnectionLost(NurApiTransport transport);
+}
@@ -0,0 +1,390 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Throughput and latency counters of one transport.
+ * <p>
+ * Transports update the counters from their read and write paths; updates are lock free and do not allocate.
+ * Command latency is the time from writing a command packet to receiving the response packet with the same
+ * command byte, collected to a histogram with power of two millisecond buckets. Packet boundaries are tracked
+ * across reads, so it does not matter how the link chunks the data. Only the header and command byte of each
+ * received packet are looked at, in place; payloads are skipped without copying.
+ * {@link #onRead(byte[], int, int)} must be called from one thread at a time, normally the read thread.
+ * </p>
+ */
+public class NurTransportMetrics
+{
+	/** Number of latency histogram buckets. Bucket i counts latencies below 2^i ms, last one the rest. */
+	public static final int LATENCY_BUCKETS = 16;
+
+	/** Offset of the command byte, first payload byte of both commands and responses. */
+	static final int CMD_OFFSET = NurReaderGateway.HEADER_SIZE;
+
+	private final AtomicLong mBytesIn = new AtomicLong();
+	private final AtomicLong mBytesOut = new AtomicLong();
+	private final AtomicLong mReads = new AtomicLong();
+	private final AtomicLong mPacketsOut = new AtomicLong();
+	private final AtomicLong mSegmentsOut = new AtomicLong();
+	private final AtomicLong mReadTimeouts = new AtomicLong();
+	private final AtomicLong mReadErrors = new AtomicLong();
+	private final AtomicLong mWriteErrors = new AtomicLong();
+	private final AtomicLongArray mLatency = new AtomicLongArray(LATENCY_BUCKETS);
+	private final AtomicLong mLatencySum = new AtomicLong();
+	/** Pending command: send time in ms shifted left by 8, command byte in the low 8 bits. 0 if none. */
+	private final AtomicLong mPendingCmd = new AtomicLong();
+	/** Header of the packet being received, collected across reads. Used by the read thread only. */
+	private final byte[] mRxHeader = new byte[CMD_OFFSET + 1];
+	private int mRxHeaderCount = 0;
+	/** Payload bytes after the command byte still to skip. */
+	private int mRxSkip = 0;
+	private volatile String mLastError = null;
+	private volatile long mStartTime = System.currentTimeMillis();
+
+	/**
+	 * Clear all counters. Transports call this on connect.
+	 */
+	public void reset()
+	{
+		mBytesIn.set(0);
+		mBytesOut.set(0);
+		mReads.set(0);
+		mPacketsOut.set(0);
+		mSegmentsOut.set(0);
+		mReadTimeouts.set(0);
+		mReadErrors.set(0);
+		mWriteErrors.set(0);
+		for (int i = 0; i < LATENCY_BUCKETS; i++)
+			mLatency.set(i, 0);
+		mLatencySum.set(0);
+		mPendingCmd.set(0);
+		mRxHeaderCount = 0;
+		mRxSkip = 0;
+		mLastError = null;
+		mStartTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Record a read that returned data.
+	 * @param buf Data buffer.
+	 * @param off Offset of the data.
+	 * @param len Number of bytes.
+	 */
+	public void onRead(byte[] buf, int off, int len)
+	{
+		mReads.incrementAndGet();
+		mBytesIn.addAndGet(len);
+
+		int end = off + len;
+		while (off < end)
+		{
+			if (mRxSkip > 0) {
+				int n = Math.min(mRxSkip, end - off);
+				mRxSkip -= n;
+				off += n;
+				continue;
+			}
+
+			// Look for the start byte, then collect the header and command byte
+			byte b = buf[off++];
+			if (mRxHeaderCount == 0 && (b & 0xFF) != 0xA5)
+				continue;
+			mRxHeader[mRxHeaderCount++] = b;
+
+			if (mRxHeaderCount == NurReaderGateway.HEADER_SIZE)
+			{
+				int payloadLen = (mRxHeader[1] & 0xFF) | ((mRxHeader[2] & 0xFF) << 8);
+				if (!rxHeaderValid() || NurReaderGateway.HEADER_SIZE + payloadLen > NurReaderGateway.MAX_PACKET_SIZE)
+					resyncRxHeader();
+				else if (payloadLen == 0)
+					mRxHeaderCount = 0;
+			}
+			else if (mRxHeaderCount == CMD_OFFSET + 1)
+			{
+				mRxSkip = ((mRxHeader[1] & 0xFF) | ((mRxHeader[2] & 0xFF) << 8)) - 1;
+				mRxHeaderCount = 0;
+				onRxPacket();
+			}
+		}
+	}
+
+	private void onRxPacket()
+	{
+		int flags = (mRxHeader[3] & 0xFF) | ((mRxHeader[4] & 0xFF) << 8);
+		if ((flags & NurPacket.FLAG_UNSOL) != 0)
+			return;
+		long pending = mPendingCmd.get();
+		if (pending != 0 && (pending & 0xFF) == (mRxHeader[CMD_OFFSET] & 0xFF) && mPendingCmd.compareAndSet(pending, 0))
+		{
+			long ms = System.nanoTime() / 1000000 - (pending >>> 8);
+			mLatencySum.addAndGet(ms);
+			mLatency.incrementAndGet(bucketOf(ms));
+		}
+	}
+
+	private boolean rxHeaderValid()
+	{
+		int cs = 0xFF;
+		for (int i = 0; i < NurReaderGateway.HEADER_SIZE - 1; i++)
+			cs ^= mRxHeader[i];
+		return (cs & 0xFF) == (mRxHeader[NurReaderGateway.HEADER_SIZE - 1] & 0xFF);
+	}
+
+	/** Bad header: drop its start byte and continue from the next start byte within it, if any. */
+	private void resyncRxHeader()
+	{
+		int from = 1;
+		while (from < mRxHeaderCount && (mRxHeader[from] & 0xFF) != 0xA5)
+			from++;
+		System.arraycopy(mRxHeader, from, mRxHeader, 0, mRxHeaderCount - from);
+		mRxHeaderCount -= from;
+	}
+
+	/**
+	 * Record packet written by NurApi.
+	 * @param buf Packet.
+	 * @param len Packet length.
+	 */
+	public void onWrite(byte[] buf, int len)
+	{
+		mPacketsOut.incrementAndGet();
+		mBytesOut.addAndGet(len);
+		// ACKs to unsolicited packets get no response
+		if (len > CMD_OFFSET && (buf[0] & 0xFF) == 0xA5 && !isAck(buf, len)) {
+			long now = Math.max(1, System.nanoTime() / 1000000);
+			mPendingCmd.set((now << 8) | (buf[CMD_OFFSET] & 0xFF));
+		}
+	}
+
+	/**
+	 * Record one write to the underlying link (socket write, USB transfer, BLE characteristic write).
+	 */
+	public void onSegment()
+	{
+		mSegmentsOut.incrementAndGet();
+	}
+
+	public void onReadTimeout()
+	{
+		mReadTimeouts.incrementAndGet();
+	}
+
+	public void onReadError(String error)
+	{
+		mReadErrors.incrementAndGet();
+		mLastError = "read: " + error;
+	}
+
+	public void onWriteError(String error)
+	{
+		mWriteErrors.incrementAndGet();
+		mLastError = "write: " + error;
+	}
+
+	private static boolean isAck(byte[] buf, int len)
+	{
+		byte[] ack = NurReaderGateway.ACK_PACKET;
+		if (len != ack.length)
+			return false;
+		for (int i = 0; i < len; i++) {
+			if (buf[i] != ack[i])
+				return false;
+		}
+		return true;
+	}
+
+	static int bucketOf(long ms)
+	{
+		int b = 64 - Long.numberOfLeadingZeros(Math.max(0, ms));
+		return Math.min(b, LATENCY_BUCKETS - 1);
+	}
+
+	public long getBytesIn()
+	{
+		return mBytesIn.get();
+	}
+
+	public long getBytesOut()
+	{
+		return mBytesOut.get();
+	}
+
+	/**
+	 * @return Number of reads that returned data, i.e. read thread wake-ups with work to do.
+	 */
+	public long getReadCount()
+	{
+		return mReads.get();
+	}
+
+	/**
+	 * @return Number of packets written by NurApi.
+	 */
+	public long getPacketsOut()
+	{
+		return mPacketsOut.get();
+	}
+
+	/**
+	 * @return Number of writes to the underlying link.
+	 */
+	public long getSegmentsOut()
+	{
+		return mSegmentsOut.get();
+	}
+
+	public long getReadTimeouts()
+	{
+		return mReadTimeouts.get();
+	}
+
+	public long getReadErrors()
+	{
+		return mReadErrors.get();
+	}
+
+	public long getWriteErrors()
+	{
+		return mWriteErrors.get();
+	}
+
+	/**
+	 * @return Description of the last read or write error, null if none.
+	 */
+	public String getLastError()
+	{
+		return mLastError;
+	}
+
+	/**
+	 * @return Average received bytes per second since reset.
+	 */
+	public double getRxRate()
+	{
+		return mBytesIn.get() * 1000.0 / Math.max(1, System.currentTimeMillis() - mStartTime);
+	}
+
+	/**
+	 * @return Average sent bytes per second since reset.
+	 */
+	public double getTxRate()
+	{
+		return mBytesOut.get() * 1000.0 / Math.max(1, System.currentTimeMillis() - mStartTime);
+	}
+
+	/**
+	 * @return Copy of the command latency histogram, see {@link #LATENCY_BUCKETS}.
+	 */
+	public long[] getLatencyHistogram()
+	{
+		long[] h = new long[LATENCY_BUCKETS];
+		for (int i = 0; i < LATENCY_BUCKETS; i++)
+			h[i] = mLatency.get(i);
+		return h;
+	}
+
+	/**
+	 * @return Number of measured command round trips.
+	 */
+	public long getLatencyCount()
+	{
+		long n = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++)
+			n += mLatency.get(i);
+		return n;
+	}
+
+	/**
+	 * @return Average command latency in milliseconds, 0 if none measured.
+	 */
+	public double getAverageLatency()
+	{
+		long n = getLatencyCount();
+		return n == 0 ? 0 : (double) mLatencySum.get() / n;
+	}
+
+	/**
+	 * Estimate latency percentile from the histogram.
+	 * @param p Percentile 0..100.
+	 * @return Upper bound of the bucket that contains the percentile in milliseconds, 0 if none measured.
+	 */
+	public long getLatencyPercentile(double p)
+	{
+		long[] h = getLatencyHistogram();
+		long n = 0;
+		for (long c : h)
+			n += c;
+		if (n == 0)
+			return 0;
+
+		long target = (long) Math.ceil(n * p / 100.0);
+		long acc = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			acc += h[i];
+			if (acc >= Math.max(1, target))
+				return 1L << i;
+		}
+		return 1L << (LATENCY_BUCKETS - 1);
+	}
+
+	/**
+	 * @return Snapshot of all counters as JSON.
+	 * @throws JSONException on error.
+	 */
+	public JSONObject toJson() throws JSONException
+	{
+		JSONObject o = new JSONObject();
+		o.put("uptimeMs", System.currentTimeMillis() - mStartTime);
+		o.put("bytesIn", getBytesIn());
+		o.put("bytesOut", getBytesOut());
+		o.put("reads", getReadCount());
+		o.put("packetsOut", getPacketsOut());
+		o.put("segmentsOut", getSegmentsOut());
+		o.put("readTimeouts", getReadTimeouts());
+		o.put("readErrors", getReadErrors());
+		o.put("writeErrors", getWriteErrors());
+		o.put("rxRate", getRxRate());
+		o.put("txRate", getTxRate());
+		o.put("latencyAvgMs", getAverageLatency());
+		o.put("latencyP50Ms", getLatencyPercentile(50));
+		o.put("latencyP99Ms", getLatencyPercentile(99));
+		JSONArray h = new JSONArray();
+		for (long c : getLatencyHistogram())
+			h.put(c);
+		o.put("latencyHistogram", h);
+		if (mLastError != null)
+			o.put("lastError", mLastError);
+		return o;
+	}
+
+	@Override
+	public String toString()
+	{
+		try {
+			return toJson().toString();
+		} catch (JSONException e) {
+			return super.toString();
+		}
+	}
+}
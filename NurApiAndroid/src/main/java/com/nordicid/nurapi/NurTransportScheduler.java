@@ -0,0 +1,75 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared timer for short transport housekeeping tasks, such as delayed write flushes.
+ * Tasks must not block; blocking work started by a timer goes to the shared worker pool.
+ */
+class NurTransportScheduler
+{
+	/** Maximum number of worker threads, idle workers exit after {@link #WORKER_KEEPALIVE} ms. */
+	static final int WORKER_THREADS = 4;
+	static final long WORKER_KEEPALIVE = 30000;
+
+	private static ScheduledThreadPoolExecutor sExecutor = null;
+	private static ThreadPoolExecutor sWorkers = null;
+
+	static synchronized ScheduledExecutorService get()
+	{
+		if (sExecutor == null)
+		{
+			sExecutor = new ScheduledThreadPoolExecutor(1, daemonFactory("NurTransportScheduler-"));
+			sExecutor.setRemoveOnCancelPolicy(true);
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * Bounded pool for blocking tasks such as heartbeat pings.
+	 * Tasks beyond {@link #WORKER_THREADS} wait in the queue.
+	 */
+	static synchronized ExecutorService getWorkers()
+	{
+		if (sWorkers == null)
+		{
+			sWorkers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, WORKER_KEEPALIVE, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), daemonFactory("NurTransportWorker-"));
+			sWorkers.allowCoreThreadTimeOut(true);
+		}
+		return sWorkers;
+	}
+
+	private static ThreadFactory daemonFactory(final String prefix)
+	{
+		final AtomicInteger count = new AtomicInteger(0);
+		return r -> {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
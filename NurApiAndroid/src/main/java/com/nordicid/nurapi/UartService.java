@@ -14,9 +14,11 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
@@ -50,8 +52,66 @@ public class UartService extends Service implements BleScanner.BleScannerListene
     public static final UUID RX_CHAR_UUID = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
     public static final UUID TX_CHAR_UUID = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
 
+    /**
+     * ATT MTU every BLE link starts with
+     */
+    public static final int DEFAULT_ATT_MTU = 23;
+
+    /**
+     * Largest ATT MTU Android can negotiate
+     */
+    public static final int MAX_ATT_MTU = 517;
+
+    /**
+     * ATT write request opcode and handle take 3 bytes of the MTU
+     */
+    static final int ATT_WRITE_OVERHEAD = 3;
+
+    /**
+     * Maximum length of an attribute value; a 517 byte MTU would otherwise allow 514 byte writes
+     */
+    static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    /**
+     * Time to wait for onMtuChanged before continuing with the default MTU
+     */
+    static final int MTU_REQUEST_TIMEOUT = 1000;
+
+    volatile int mMtu = DEFAULT_ATT_MTU;
+    volatile boolean mMtuPending = false;
+
+    /**
+     * Default number of write without response packets in flight
+     */
+    public static final int DEFAULT_TX_CREDITS = 4;
+
+    /**
+     * Retry delay after a busy write without response when no write is in flight
+     */
+    static final int TX_RETRY_DELAY = 10;
+
+    /**
+     * Busy retries in a row without a write in flight before the link is considered stuck and disconnected
+     */
+    static final int TX_MAX_RETRIES = 50;
+
+    volatile boolean mWriteNoResponse = false;
+    volatile boolean mNoResponseActive = false;
+    int mMaxTxCredits = DEFAULT_TX_CREDITS;
+    int mTxCredits = DEFAULT_TX_CREDITS;
+    int mTxRetries = 0;
+    final Object mTxPumpLock = new Object();
+
+    // TX burst measurement, guarded by mTxBuf: a burst lasts from data queued to an idle TX path until all of it is sent
+    long mTxBurstStart = 0;
+    long mTxBurstPending = 0;
+    long mTxBurstBytes = 0;
+    long mTxBurstNanos = 0;
+    long mTxBursts = 0;
+
     final RingBuffer mTxBuf = new RingBuffer();
     boolean mTxActive = false;
+    volatile NurTransportMetrics mMetrics = null;
 
     BluetoothGattService mRxService = null;
     BluetoothGattCharacteristic mTxChar = null;
@@ -79,6 +139,18 @@ public class UartService extends Service implements BleScanner.BleScannerListene
         if (mEvents != null)
             mEvents.onConnStateChanged();
 
+        if (state == STATE_DISCONNECTED) {
+            mMtu = DEFAULT_ATT_MTU;
+            mNoResponseActive = false;
+            mHandler.removeCallbacks(mTxRetry);
+            synchronized (mTxBuf) {
+                mTxCredits = mMaxTxCredits;
+                mTxRetries = 0;
+                mTxBurstStart = 0;
+                mTxBurstPending = 0;
+            }
+        }
+
         if (state == STATE_DISCONNECTED && !mClosed)
         {
             mTxActive = false;
@@ -89,6 +161,104 @@ public class UartService extends Service implements BleScanner.BleScannerListene
         }
     }
 
+    /**
+     * Select write type for the TX data. With write without response up to {@code credits} writes are handed to
+     * the stack before their onCharacteristicWrite arrives. Before Android 13 the GATT client accepts only one
+     * pending operation, so there credits above 1 have no effect. Falls back to acknowledged writes if the
+     * reader's RX characteristic lacks the property. Applied on next connect.
+     * Whether this is faster depends on the phone and the reader; compare {@link #getTxBurstThroughput()} in both modes.
+     *
+     * @param enable True to use write without response
+     * @param credits Max writes in flight, Android 13+
+     */
+    public void setWriteWithoutResponse(boolean enable, int credits)
+    {
+        mWriteNoResponse = enable;
+        synchronized (mTxBuf) {
+            mMaxTxCredits = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU ? Math.max(1, credits) : 1;
+            mTxCredits = mMaxTxCredits;
+        }
+    }
+
+    /**
+     * Average TX throughput while data was waiting to be sent, idle time excluded.
+     * Use it to compare write types on the target phone and reader.
+     *
+     * @return Bytes per second since the last {@link #resetTxStats()}, 0 if nothing measured
+     */
+    public double getTxBurstThroughput()
+    {
+        synchronized (mTxBuf) {
+            return mTxBurstNanos == 0 ? 0 : mTxBurstBytes * 1e9 / mTxBurstNanos;
+        }
+    }
+
+    /**
+     * @return Number of measured TX bursts
+     */
+    public long getTxBurstCount()
+    {
+        synchronized (mTxBuf) {
+            return mTxBursts;
+        }
+    }
+
+    /**
+     * Clear the TX burst measurement
+     */
+    public void resetTxStats()
+    {
+        synchronized (mTxBuf) {
+            mTxBurstBytes = 0;
+            mTxBurstNanos = 0;
+            mTxBursts = 0;
+        }
+    }
+
+    /** Caller holds mTxBuf */
+    private void beginTxBurst(int len)
+    {
+        if (mTxBurstStart == 0)
+            mTxBurstStart = System.nanoTime();
+        mTxBurstPending += len;
+    }
+
+    /** TX path went idle. Caller holds mTxBuf */
+    private void endTxBurst()
+    {
+        if (mTxBurstStart == 0)
+            return;
+        mTxBurstNanos += System.nanoTime() - mTxBurstStart;
+        mTxBurstBytes += mTxBurstPending;
+        mTxBursts++;
+        mTxBurstStart = 0;
+        mTxBurstPending = 0;
+    }
+
+    /**
+     * @return True if the current connection uses write without response
+     */
+    public boolean isWriteWithoutResponseActive()
+    {
+        return mNoResponseActive;
+    }
+
+    /**
+     * @return Negotiated ATT MTU of the current connection
+     */
+    public int getMtu()
+    {
+        return mMtu;
+    }
+
+    /**
+     * @return Largest characteristic write that fits to one ATT packet, at most the 512 byte attribute value limit
+     */
+    public int getMaxChunkSize()
+    {
+        return Math.min(mMtu - ATT_WRITE_OVERHEAD, MAX_ATTRIBUTE_LENGTH);
+    }
+
     public String getRealAddress()
     {
         if (mBluetoothGatt == null) {
@@ -179,13 +349,16 @@ public class UartService extends Service implements BleScanner.BleScannerListene
                     mTxChar = mRxChar = null;
                 }
 
-                if (mRxService != null && mTxChar != null && mRxChar != null && enableTXNotification())
+                if (mRxService != null && mTxChar != null && mRxChar != null)
                 {
-                    Log.i(TAG, "CONNECTED");
-                    setConnState(STATE_CONNECTED);
-
-                    mHandler.postDelayed(mCheckRemoteRssi, mCheckRemoteRssiInterval);
-
+                    // Only one GATT operation at a time; enable notifications once MTU exchange is done
+                    mMtuPending = mBluetoothGatt.requestMtu(MAX_ATT_MTU);
+                    if (mMtuPending) {
+                        Log.i(TAG, "requestMtu " + MAX_ATT_MTU);
+                        mHandler.postDelayed(mMtuTimeout, MTU_REQUEST_TIMEOUT);
+                    } else {
+                        finishConnect();
+                    }
                 } else {
                     disconnect();
                 }
@@ -195,6 +368,20 @@ public class UartService extends Service implements BleScanner.BleScannerListene
             }
         }
 
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+
+            Log.i(TAG, "onMtuChanged " + mtu + "; status " + status);
+            if (status == BluetoothGatt.GATT_SUCCESS)
+                mMtu = mtu;
+
+            mHandler.post(() -> {
+                if (mMtuPending)
+                    finishConnect();
+            });
+        }
+
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
@@ -219,6 +406,19 @@ public class UartService extends Service implements BleScanner.BleScannerListene
 
             //Log.e(TAG, "onCharacteristicWrite " + status + " c " + mTxBuf.getCount() + " mTxActive " + mTxActive);
 
+            if (mNoResponseActive) {
+                synchronized (mTxBuf) {
+                    mTxCredits = Math.min(mTxCredits + 1, mMaxTxCredits);
+                }
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    NurTransportMetrics metrics = mMetrics;
+                    if (metrics != null)
+                        metrics.onWriteError("onCharacteristicWrite status " + status);
+                }
+                pumpNoResponse();
+                return;
+            }
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 // Log.d(TAG,"Characteristic write successful");
 
@@ -227,7 +427,7 @@ public class UartService extends Service implements BleScanner.BleScannerListene
                 {
                     if (mTxBuf.getCount() > 0)
                     {
-                        int len = 20;
+                        int len = getMaxChunkSize();
                         if (len > mTxBuf.getCount())
                             len = mTxBuf.getCount();
                         subArray = new byte[len];
@@ -241,6 +441,9 @@ public class UartService extends Service implements BleScanner.BleScannerListene
                     return;
                 }
             }
+            synchronized (mTxBuf) {
+                endTxBurst();
+            }
             mTxActive = false;
         }
 
@@ -429,6 +632,39 @@ public class UartService extends Service implements BleScanner.BleScannerListene
         return true;
     }
 
+    final Runnable mMtuTimeout = () -> {
+        if (mMtuPending) {
+            Log.w(TAG, "onMtuChanged not received, use MTU " + mMtu);
+            finishConnect();
+        }
+    };
+
+    /**
+     * Enable notifications and report connected after service discovery and MTU exchange
+     */
+    void finishConnect()
+    {
+        mMtuPending = false;
+        mHandler.removeCallbacks(mMtuTimeout);
+        if (mClosed || mBluetoothGatt == null || mTxChar == null)
+            return;
+
+        mNoResponseActive = mWriteNoResponse
+                && (mRxChar.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+        if (mWriteNoResponse && !mNoResponseActive)
+            Log.w(TAG, "write without response not supported, use acknowledged writes");
+
+        if (enableTXNotification())
+        {
+            Log.i(TAG, "CONNECTED; MTU " + mMtu + (mNoResponseActive ? "; write without response" : ""));
+            setConnState(STATE_CONNECTED);
+
+            mHandler.postDelayed(mCheckRemoteRssi, mCheckRemoteRssiInterval);
+        } else {
+            disconnect();
+        }
+    }
+
     Runnable mConnectBonded = new Runnable() {
         @Override
         public void run() {
@@ -541,9 +777,10 @@ public class UartService extends Service implements BleScanner.BleScannerListene
     private boolean writeRXCharacteristic2(byte[] value)
     {
         int len = value.length;
-        if (len > 20) {
-            mTxBuf.Write(value, 20, value.length-20);
-            len = 20;
+        int chunk = getMaxChunkSize();
+        if (len > chunk) {
+            mTxBuf.Write(value, chunk, value.length-chunk);
+            len = chunk;
             value = Arrays.copyOf(value, len);
         }
 
@@ -557,14 +794,118 @@ public class UartService extends Service implements BleScanner.BleScannerListene
         if (!status)
             mTxActive = false;
 
+        NurTransportMetrics metrics = mMetrics;
+        if (metrics != null) {
+            if (status)
+                metrics.onSegment();
+            else
+                metrics.onWriteError("writeCharacteristic failed");
+        }
+
         //Log.d(TAG, "writeRXCharacteristic2; "+len+" - status=" + status);
         return status;
     }
 
+    /**
+     * Write chunk to the RX characteristic
+     *
+     * @return BluetoothStatusCodes.SUCCESS, BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY or other error
+     */
+    private int writeChunk(byte[] value, int writeType)
+    {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+                return mBluetoothGatt.writeCharacteristic(mRxChar, value, writeType);
+
+            // Older API reports an operation in progress only as false; the retry limit ends real failures
+            mRxChar.setWriteType(writeType);
+            mRxChar.setValue(value);
+            return mBluetoothGatt.writeCharacteristic(mRxChar) ? BluetoothStatusCodes.SUCCESS : BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+        } catch (Exception e) {
+            return BluetoothStatusCodes.ERROR_UNKNOWN;
+        }
+    }
+
+    final Runnable mTxRetry = this::pumpNoResponse;
+
+    /**
+     * Send buffered TX data with write without response while there are credits left.
+     * Only a busy stack is retried, at most {@link #TX_MAX_RETRIES} times in a row; any other
+     * error or a stack that stays busy disconnects, so NurApi sees the failure instead of a stall.
+     */
+    void pumpNoResponse()
+    {
+        synchronized (mTxPumpLock)
+        {
+            while (mBluetoothGatt != null && mRxChar != null)
+            {
+                byte[] chunk;
+                synchronized (mTxBuf) {
+                    int len = Math.min(getMaxChunkSize(), mTxBuf.getCount());
+                    if (len == 0 || mTxCredits <= 0) {
+                        mTxActive = mTxCredits < mMaxTxCredits;
+                        if (len == 0 && !mTxActive)
+                            endTxBurst();
+                        return;
+                    }
+                    chunk = new byte[len];
+                    mTxBuf.Peek(chunk, len);
+                    mTxCredits--;
+                    mTxActive = true;
+                }
+
+                int res = writeChunk(chunk, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                NurTransportMetrics metrics = mMetrics;
+                boolean inFlight;
+                int retries;
+                synchronized (mTxBuf) {
+                    if (res == BluetoothStatusCodes.SUCCESS) {
+                        mTxBuf.DiscardBytes(chunk.length);
+                        mTxRetries = 0;
+                        if (metrics != null)
+                            metrics.onSegment();
+                        continue;
+                    }
+                    mTxCredits++;
+                    inFlight = mTxCredits < mMaxTxCredits;
+                    retries = inFlight ? mTxRetries : ++mTxRetries;
+                }
+
+                if (res == BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY) {
+                    // Next onCharacteristicWrite resumes
+                    if (inFlight)
+                        return;
+                    if (retries <= TX_MAX_RETRIES) {
+                        mHandler.removeCallbacks(mTxRetry);
+                        mHandler.postDelayed(mTxRetry, TX_RETRY_DELAY);
+                        return;
+                    }
+                }
+
+                Log.e(TAG, "write without response failed " + res + " after " + retries + " retries, disconnecting");
+                if (metrics != null)
+                    metrics.onWriteError("writeCharacteristic " + res);
+                mHandler.post(this::disconnect);
+                return;
+            }
+        }
+    }
+
     public boolean writeRXCharacteristic(byte[] value)
     {
+        if (mNoResponseActive)
+        {
+            synchronized (mTxBuf) {
+                beginTxBurst(value.length);
+                mTxBuf.Write(value);
+            }
+            pumpNoResponse();
+            return true;
+        }
+
         synchronized (mTxBuf)
         {
+            beginTxBurst(value.length);
             if (mTxActive)
             {
                 mTxBuf.Write(value);
@@ -572,7 +913,14 @@ public class UartService extends Service implements BleScanner.BleScannerListene
             }
         }
 
-        return writeRXCharacteristic2(value);
+        if (writeRXCharacteristic2(value))
+            return true;
+        synchronized (mTxBuf) {
+            // Failed burst is not a throughput sample
+            mTxBurstStart = 0;
+            mTxBurstPending = 0;
+        }
+        return false;
     }
 
     /**
@@ -0,0 +1,166 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NurApiSocketTransportTest
+{
+	private ServerSocket mServer;
+	private Socket mPeer;
+	private NurApiSocketTransport mTransport;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		mTransport = new NurApiSocketTransport("127.0.0.1", mServer.getLocalPort());
+		mTransport.setReadTimeout(50);
+		mTransport.connect();
+		mPeer = mServer.accept();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		mTransport.disconnect();
+		mPeer.close();
+		mServer.close();
+	}
+
+	/** Looked up once, getThreadMXBean() allocates on each call. */
+	private static final java.lang.management.ThreadMXBean sThreadBean = ManagementFactory.getThreadMXBean();
+
+	/** @return Bytes allocated by the current thread, -1 if the JVM can not tell. */
+	static long allocatedBytes()
+	{
+		if (!(sThreadBean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) sThreadBean;
+		if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/** Read exactly total bytes, waiting for the peer as needed. Allocates only on failure. */
+	static void readFully(NurApiTransport tr, byte[] buffer, long total) throws Exception
+	{
+		long got = 0;
+		while (got < total) {
+			int r = tr.readData(buffer);
+			if (r < 0)
+				fail("end of stream after " + got + " bytes");
+			got += r;
+		}
+	}
+
+	@Test
+	public void readsPeerData() throws Exception
+	{
+		OutputStream out = mPeer.getOutputStream();
+		out.write(new byte[] { 1, 2, 3 });
+		out.flush();
+
+		byte[] buffer = new byte[16];
+		int r = 0;
+		while (r == 0)
+			r = mTransport.readData(buffer);
+		assertEquals(3, r);
+		assertEquals(3, buffer[2]);
+	}
+
+	@Test
+	public void readTimeoutReturnsZero() throws Exception
+	{
+		byte[] buffer = new byte[16];
+		assertEquals(0, mTransport.readData(buffer));
+		assertTrue(mTransport.isConnected());
+		assertEquals(1, mTransport.getMetrics().getReadTimeouts());
+	}
+
+	@Test
+	public void peerCloseReturnsEndOfStream() throws Exception
+	{
+		mPeer.close();
+		byte[] buffer = new byte[16];
+		int r = 0;
+		for (int i = 0; i < 100 && r == 0; i++)
+			r = mTransport.readData(buffer);
+		assertEquals(-1, r);
+		assertFalse(mTransport.isConnected());
+	}
+
+	@Test
+	public void steadyStateReadDoesNotAllocate() throws Exception
+	{
+		Assume.assumeTrue(allocatedBytes() >= 0);
+
+		final int chunk = 256;
+		final int rounds = 2000;
+		byte[] data = NurPacketFramerTest.packet(NurPacket.FLAG_UNSOL, 0x80, chunk - NurReaderGateway.HEADER_SIZE);
+		byte[] buffer = new byte[chunk];
+		OutputStream out = mPeer.getOutputStream();
+
+		// Warm up wrappers, metrics, selector internals and the JIT. Until the JIT has compiled the
+		// whole path, interpreted code allocates objects that compiled code keeps out of the heap.
+		for (int warmup = 0; warmup < 30; warmup++) {
+			for (int i = 0; i < rounds; i++)
+				out.write(data);
+			out.flush();
+			readFully(mTransport, buffer, (long) chunk * rounds);
+		}
+
+		for (int i = 0; i < rounds; i++)
+			out.write(data);
+		out.flush();
+		long before = allocatedBytes();
+		readFully(mTransport, buffer, (long) chunk * rounds);
+		long allocated = allocatedBytes() - before;
+
+		assertEquals("bytes allocated by " + rounds + " reads", 0, allocated);
+	}
+
+	@Test
+	public void timeoutReadDoesNotAllocate() throws Exception
+	{
+		Assume.assumeTrue(allocatedBytes() >= 0);
+
+		mTransport.setReadTimeout(1);
+		byte[] buffer = new byte[64];
+		for (int i = 0; i < 50; i++)
+			assertEquals(0, mTransport.readData(buffer));
+
+		long before = allocatedBytes();
+		for (int i = 0; i < 20; i++)
+			mTransport.readData(buffer);
+		assertEquals(0, allocatedBytes() - before);
+	}
+}
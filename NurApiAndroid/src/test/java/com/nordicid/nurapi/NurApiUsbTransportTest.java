@@ -0,0 +1,344 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link NurApiUsbTransport} on a fake device that completes each IN transfer after a fixed turnaround.
+ * The benchmark compares the synchronous read path to queued reads. Results go to stdout.
+ */
+public class NurApiUsbTransportTest
+{
+	static final int MAX_PACKET_SIZE = 64;
+
+	/** Bytes the fake device returns per IN transfer, like one burst of inventory data. */
+	static final int TRANSFER_BYTES = 512;
+
+	/** Time the fake device takes to complete an IN transfer in microseconds. */
+	static final int TURNAROUND_US = 200;
+
+	/** NurApi side work per read in microseconds. */
+	static final int PARSE_US = 200;
+
+	static final int BENCH_BYTES = 2 * 1024 * 1024;
+
+	/** Request whose queue and cancel go to the fake device instead of the USB stack. */
+	static class FakeRequest extends UsbRequest
+	{
+		final FakeUsbIo mIo;
+		Object mClientData;
+		ByteBuffer mBuffer;
+		boolean mClosed;
+
+		FakeRequest(FakeUsbIo io)
+		{
+			mIo = io;
+		}
+
+		@Override
+		public boolean initialize(android.hardware.usb.UsbDeviceConnection connection, UsbEndpoint endpoint)
+		{
+			return true;
+		}
+
+		@Override
+		public Object getClientData()
+		{
+			return mClientData;
+		}
+
+		@Override
+		public void setClientData(Object data)
+		{
+			mClientData = data;
+		}
+
+		@Override
+		public boolean queue(ByteBuffer buffer)
+		{
+			return mIo.queue(this, buffer);
+		}
+
+		@Override
+		public boolean queue(ByteBuffer buffer, int length)
+		{
+			return mIo.queue(this, buffer);
+		}
+
+		@Override
+		public boolean cancel()
+		{
+			return mIo.cancel(this);
+		}
+
+		@Override
+		public void close()
+		{
+			mClosed = true;
+		}
+	}
+
+	/**
+	 * Device that streams an incrementing byte sequence. Queued requests complete one at a time
+	 * in requestWait(), synchronous transfers complete in bulkTransfer().
+	 */
+	static class FakeUsbIo implements NurApiUsbTransport.UsbIo
+	{
+		private final ArrayDeque<FakeRequest> mPending = new ArrayDeque<>();
+		private final ArrayDeque<FakeRequest> mCancelled = new ArrayDeque<>();
+		final List<FakeRequest> mRequests = new ArrayList<>();
+		private int mWaiting = 0;
+		private boolean mClosed = false;
+		private byte mNext = 0;
+
+		volatile boolean mClosedWhileWaiting = false;
+		volatile int mOpenRequestsAtClose = -1;
+
+		synchronized boolean queue(FakeRequest req, ByteBuffer buffer)
+		{
+			if (mClosed)
+				return false;
+			req.mBuffer = buffer;
+			mPending.addLast(req);
+			notifyAll();
+			return true;
+		}
+
+		synchronized boolean cancel(FakeRequest req)
+		{
+			if (!mPending.remove(req))
+				return false;
+			mCancelled.addLast(req);
+			notifyAll();
+			return true;
+		}
+
+		private synchronized void fill(byte []buffer, int offset, int length)
+		{
+			for (int i = 0; i < length; i++)
+				buffer[offset + i] = mNext++;
+		}
+
+		private synchronized void fill(ByteBuffer buffer)
+		{
+			int n = Math.min(buffer.remaining(), TRANSFER_BYTES);
+			for (int i = 0; i < n; i++)
+				buffer.put(mNext++);
+		}
+
+		@Override
+		public int bulkTransfer(UsbEndpoint ep, byte []buffer, int offset, int length, int timeout)
+		{
+			transferDelay();
+			int n = Math.min(length, TRANSFER_BYTES);
+			fill(buffer, offset, n);
+			return n;
+		}
+
+		@Override
+		public UsbRequest requestWait()
+		{
+			FakeRequest req;
+			synchronized (this)
+			{
+				mWaiting++;
+				try {
+					while (!mClosed && mCancelled.isEmpty() && mPending.isEmpty()) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return null;
+						}
+					}
+					if (mClosed)
+						return null;
+					if (!mCancelled.isEmpty())
+						return mCancelled.pollFirst();
+					req = mPending.pollFirst();
+				} finally {
+					mWaiting--;
+				}
+			}
+			transferDelay();
+			fill(req.mBuffer);
+			return req;
+		}
+
+		@Override
+		public UsbRequest requestWait(long timeout) throws TimeoutException
+		{
+			synchronized (this)
+			{
+				long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+				while (!mClosed && mCancelled.isEmpty() && mPending.isEmpty()) {
+					long left = end - System.nanoTime();
+					if (left <= 0)
+						throw new TimeoutException();
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, left);
+					} catch (InterruptedException e) {
+						return null;
+					}
+				}
+			}
+			return requestWait();
+		}
+
+		@Override
+		public synchronized UsbRequest openRequest(UsbEndpoint ep)
+		{
+			FakeRequest req = new FakeRequest(this);
+			mRequests.add(req);
+			return req;
+		}
+
+		@Override
+		public synchronized void close()
+		{
+			mClosedWhileWaiting = mWaiting > 0;
+			int open = 0;
+			for (FakeRequest req : mRequests) {
+				if (!req.mClosed)
+					open++;
+			}
+			mOpenRequestsAtClose = open;
+			mClosed = true;
+			notifyAll();
+		}
+	}
+
+	/** The device side of a transfer, which takes bus time but no CPU. */
+	static void transferDelay()
+	{
+		LockSupport.parkNanos(TURNAROUND_US * 1000L);
+	}
+
+	/** CPU work of parsing, sleeping would hide it on a busy core. */
+	static void spin(int us)
+	{
+		long end = System.nanoTime() + us * 1000L;
+		while (System.nanoTime() < end)
+			;
+	}
+
+	static NurApiUsbTransport start(FakeUsbIo io, int queueDepth) throws Exception
+	{
+		NurApiUsbTransport tr = new NurApiUsbTransport(null, null);
+		tr.setQueueDepth(queueDepth);
+		tr.startTransfers(io, MAX_PACKET_SIZE);
+		return tr;
+	}
+
+	/** Read total bytes, check that they come in device order and charge the parse cost on each read. */
+	static void readSequence(NurApiUsbTransport tr, long total, int parseUs)
+	{
+		byte[] buffer = new byte[4096];
+		byte expect = 0;
+		long got = 0;
+		while (got < total) {
+			int n = tr.readData(buffer);
+			if (n < 0)
+				fail("connection lost after " + got + " bytes");
+			for (int i = 0; i < n; i++) {
+				if (buffer[i] != expect++)
+					fail("byte " + (got + i) + " out of order");
+			}
+			got += n;
+			if (n > 0 && parseUs > 0)
+				spin(parseUs);
+		}
+	}
+
+	/** @return Throughput in kilobytes per second. */
+	static double measure(int queueDepth) throws Exception
+	{
+		FakeUsbIo io = new FakeUsbIo();
+		NurApiUsbTransport tr = start(io, queueDepth);
+		readSequence(tr, BENCH_BYTES / 8, PARSE_US);
+
+		long start = System.nanoTime();
+		readSequence(tr, BENCH_BYTES, PARSE_US);
+		long ns = System.nanoTime() - start;
+		tr.disconnect();
+		return BENCH_BYTES / 1024.0 / (ns / 1e9);
+	}
+
+	@Test
+	public void queuedReadsKeepDeviceOrder() throws Exception
+	{
+		FakeUsbIo io = new FakeUsbIo();
+		NurApiUsbTransport tr = start(io, NurApiUsbTransport.DEFAULT_QUEUE_DEPTH);
+		readSequence(tr, 64 * 1024, 0);
+		assertEquals(NurApiUsbTransport.DEFAULT_QUEUE_DEPTH, io.mRequests.size());
+		assertEquals(64 * 1024, tr.getBytesCopied());
+		tr.disconnect();
+	}
+
+	@Test
+	public void disconnectReapsRequestsBeforeClosingConnection() throws Exception
+	{
+		FakeUsbIo io = new FakeUsbIo();
+		NurApiUsbTransport tr = start(io, NurApiUsbTransport.DEFAULT_QUEUE_DEPTH);
+		readSequence(tr, 8 * 1024, 0);
+
+		tr.disconnect();
+
+		assertFalse(tr.isConnected());
+		assertFalse("reap thread still in requestWait() at close", io.mClosedWhileWaiting);
+		assertEquals(0, io.mOpenRequestsAtClose);
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			assertFalse(t.getName().startsWith(NurApiUsbTransport.TAG + "-reap"));
+	}
+
+	@Test
+	public void synchronousReadsKeepDeviceOrder() throws Exception
+	{
+		FakeUsbIo io = new FakeUsbIo();
+		NurApiUsbTransport tr = start(io, 0);
+		readSequence(tr, 64 * 1024, 0);
+		assertTrue(tr.getTransferCount() > 0);
+		assertEquals(TRANSFER_BYTES, tr.getAverageTransferSize(), 0.0);
+		tr.disconnect();
+		assertFalse(tr.isConnected());
+	}
+
+	@Test
+	public void benchmarkQueuedAgainstSynchronous() throws Exception
+	{
+		double sync = measure(0);
+		double queued = measure(NurApiUsbTransport.DEFAULT_QUEUE_DEPTH);
+		System.out.printf("%d kB with %d us turnaround and %d us parse per read: synchronous %.0f kB/s, queued %.0f kB/s%n",
+				BENCH_BYTES / 1024, TURNAROUND_US, PARSE_US, sync, queued);
+	}
+}
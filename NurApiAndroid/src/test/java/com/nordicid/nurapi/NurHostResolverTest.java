@@ -0,0 +1,145 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NurHostResolverTest
+{
+	/** Resolver whose lookups can be made to fail, counts lookups. */
+	static class FakeResolver extends NurHostResolver
+	{
+		final AtomicInteger mLookups = new AtomicInteger();
+		volatile boolean mFail = false;
+
+		@Override
+		InetAddress lookup(String host) throws UnknownHostException
+		{
+			mLookups.incrementAndGet();
+			if (mFail)
+				throw new UnknownHostException(host);
+			return InetAddress.getByAddress(host, new byte[] { 10, 0, 0, 7 });
+		}
+	}
+
+	@Test
+	public void literalsSkipCache()
+	{
+		assertTrue(NurHostResolver.isLiteral("192.168.1.5"));
+		assertTrue(NurHostResolver.isLiteral("fe80::1"));
+		assertFalse(NurHostResolver.isLiteral("reader.local"));
+		assertFalse(NurHostResolver.isLiteral(""));
+
+		NurHostResolver r = new NurHostResolver();
+		InetSocketAddress a = r.resolve("10.1.2.3", 4333, 100);
+		assertFalse(a.isUnresolved());
+		assertEquals(4333, a.getPort());
+		assertEquals(0, r.getMissCount());
+		assertEquals(0, r.getHitCount());
+	}
+
+	@Test
+	public void secondLookupIsCacheHit()
+	{
+		NurHostResolver r = new NurHostResolver();
+		InetSocketAddress a = r.resolve("localhost", 4333, 5000);
+		assertFalse(a.isUnresolved());
+		assertEquals(1, r.getMissCount());
+
+		InetSocketAddress b = r.resolve("localhost", 6734, 5000);
+		assertFalse(b.isUnresolved());
+		assertEquals(6734, b.getPort());
+		assertEquals(a.getAddress(), b.getAddress());
+		assertEquals(1, r.getHitCount());
+		assertEquals(1, r.getMissCount());
+	}
+
+	@Test
+	public void expiredEntryIsServedStale() throws Exception
+	{
+		NurHostResolver r = new NurHostResolver();
+		r.setTtl(1, 1);
+		assertFalse(r.resolve("localhost", 1, 5000).isUnresolved());
+		Thread.sleep(20);
+		assertFalse(r.resolve("localhost", 1, 5000).isUnresolved());
+		assertEquals(1, r.getStaleHitCount());
+	}
+
+	@Test
+	public void clearForgetsEntries()
+	{
+		NurHostResolver r = new NurHostResolver();
+		r.resolve("localhost", 1, 5000);
+		r.clear();
+		r.resolve("localhost", 1, 5000);
+		assertEquals(2, r.getMissCount());
+		assertEquals(0, r.getHitCount());
+	}
+
+	@Test
+	public void ttlIsClamped()
+	{
+		NurHostResolver r = new NurHostResolver();
+		r.setTtl(-1, -1);
+		assertEquals(0, r.getTtl());
+		assertEquals(0, r.getNegativeTtl());
+	}
+
+	@Test
+	public void failedRefreshKeepsAddressAndBacksOff() throws Exception
+	{
+		FakeResolver r = new FakeResolver();
+		r.setTtl(300, 60000);
+		InetAddress good = r.resolve("reader", 4333, 1000).getAddress();
+		assertEquals(1, r.mLookups.get());
+
+		// Expired, but within twice the TTL the old address is still trusted
+		r.mFail = true;
+		Thread.sleep(350);
+		// Expired, served stale while the refresh fails in the background
+		assertEquals(good, r.resolve("reader", 4333, 1000).getAddress());
+		for (int i = 0; i < 100 && r.mLookups.get() < 2; i++)
+			Thread.sleep(10);
+		Thread.sleep(20);
+
+		// Failing server is not asked again within the negative TTL
+		for (int i = 0; i < 20; i++)
+			assertEquals(good, r.resolve("reader", 4333, 1000).getAddress());
+		Thread.sleep(20);
+		assertEquals(2, r.mLookups.get());
+	}
+
+	@Test
+	public void failedLookupIsCachedForNegativeTtl()
+	{
+		FakeResolver r = new FakeResolver();
+		r.mFail = true;
+		assertTrue(r.resolve("missing", 4333, 1000).isUnresolved());
+		assertTrue(r.resolve("missing", 4333, 1000).isUnresolved());
+		assertEquals(1, r.mLookups.get());
+		assertEquals(1, r.getHitCount());
+	}
+}
@@ -0,0 +1,143 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NurPacketFramerTest
+{
+	static byte[] packet(int flags, int cmd, int payloadLen)
+	{
+		byte[] p = new byte[NurReaderGateway.HEADER_SIZE + payloadLen];
+		p[0] = (byte) 0xA5;
+		p[1] = (byte) payloadLen;
+		p[2] = (byte) (payloadLen >> 8);
+		p[3] = (byte) flags;
+		p[4] = (byte) (flags >> 8);
+		int cs = 0xFF;
+		for (int i = 0; i < NurReaderGateway.HEADER_SIZE - 1; i++)
+			cs ^= p[i];
+		p[5] = (byte) cs;
+		if (payloadLen > 0)
+			p[6] = (byte) cmd;
+		for (int i = 7; i < p.length; i++)
+			p[i] = (byte) i;
+		return p;
+	}
+
+	static byte[] concat(byte[]... parts)
+	{
+		int n = 0;
+		for (byte[] p : parts)
+			n += p.length;
+		byte[] out = new byte[n];
+		int off = 0;
+		for (byte[] p : parts) {
+			System.arraycopy(p, 0, out, off, p.length);
+			off += p.length;
+		}
+		return out;
+	}
+
+	@Test
+	public void splitsPacketsFromOneChunk()
+	{
+		byte[] a = packet(0, 0x55, 3);
+		byte[] b = packet(NurPacket.FLAG_UNSOL, 0x80, 20);
+		NurReaderGateway.PacketFramer f = new NurReaderGateway.PacketFramer();
+		byte[] data = concat(a, b);
+		f.append(data, data.length);
+
+		assertArrayEquals(a, f.next());
+		byte[] pkt = f.next();
+		assertArrayEquals(b, pkt);
+		assertEquals(NurPacket.FLAG_UNSOL, NurReaderGateway.PacketFramer.getFlags(pkt));
+		assertNull(f.next());
+	}
+
+	@Test
+	public void waitsForPartialPacket()
+	{
+		byte[] a = packet(0, 0x55, 100);
+		NurReaderGateway.PacketFramer f = new NurReaderGateway.PacketFramer();
+		f.append(a, 0, 4);
+		assertNull(f.next());
+		f.append(a, 4, 50);
+		assertNull(f.next());
+		f.append(a, 54, a.length - 54);
+		assertArrayEquals(a, f.next());
+	}
+
+	@Test
+	public void skipsGarbageAndBadHeaders()
+	{
+		byte[] bad = packet(0, 0x11, 3);
+		bad[5] ^= 0x01;
+		byte[] good = packet(0, 0x22, 3);
+		byte[] data = concat(new byte[] { 0x00, (byte) 0xA5, 0x13 }, bad, good);
+		NurReaderGateway.PacketFramer f = new NurReaderGateway.PacketFramer();
+		f.append(data, data.length);
+		assertArrayEquals(good, f.next());
+		assertNull(f.next());
+	}
+
+	@Test
+	public void nextIntoBufferCopiesOnlyHeader()
+	{
+		byte[] a = packet(0, 0x42, 200);
+		byte[] b = packet(0, 0x43, 1);
+		byte[] data = concat(a, b);
+		NurReaderGateway.PacketFramer f = new NurReaderGateway.PacketFramer();
+		f.append(data, data.length);
+
+		byte[] hdr = new byte[NurReaderGateway.HEADER_SIZE + 1];
+		assertEquals(a.length, f.next(hdr));
+		assertEquals(0x42, hdr[NurReaderGateway.HEADER_SIZE]);
+		assertEquals(b.length, f.next(hdr));
+		assertEquals(0x43, hdr[NurReaderGateway.HEADER_SIZE]);
+		assertEquals(-1, f.next(hdr));
+	}
+
+	@Test
+	public void manySmallPacketsAcrossAppends()
+	{
+		NurReaderGateway.PacketFramer f = new NurReaderGateway.PacketFramer();
+		byte[] p = packet(NurPacket.FLAG_UNSOL, 0x80, 30);
+		int count = 0;
+		for (int round = 0; round < 2000; round++) {
+			f.append(p, p.length);
+			while (f.next() != null)
+				count++;
+		}
+		assertEquals(2000, count);
+	}
+
+	@Test
+	public void resetDropsBufferedData()
+	{
+		byte[] a = packet(0, 0x55, 10);
+		NurReaderGateway.PacketFramer f = new NurReaderGateway.PacketFramer();
+		f.append(a, a.length - 1);
+		f.reset();
+		f.append(a, a.length);
+		assertArrayEquals(a, f.next());
+	}
+}
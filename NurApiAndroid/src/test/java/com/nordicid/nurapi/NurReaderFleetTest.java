@@ -0,0 +1,119 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of a fleet against a local pool of simulated readers.
+ */
+public class NurReaderFleetTest
+{
+	static final int READERS = 40;
+	static final int POOL_SIZE = 4;
+	static final int HEARTBEAT_INTERVAL = 200;
+	static final long WAIT_TIMEOUT = 30000;
+
+	private final List<NurSimulatedReader> mSims = new ArrayList<>();
+	private NurReaderFleet mFleet;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		for (int i = 0; i < READERS; i++)
+			mSims.add(new NurSimulatedReader());
+		mFleet = new NurReaderFleet(null, POOL_SIZE);
+		mFleet.setReconnectStagger(10);
+		for (int i = 0; i < READERS; i++) {
+			mFleet.addReader("type=TCP;addr=127.0.0.1:" + mSims.get(i).getPort() + ";name=Sim " + i
+					+ ";heartbeat=" + HEARTBEAT_INTERVAL);
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		mFleet.shutdown();
+		for (NurSimulatedReader sim : mSims)
+			sim.close();
+	}
+
+	private boolean waitConnected(int count) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			if (mFleet.getConnectedCount() == count)
+				return true;
+			Thread.sleep(50);
+		}
+		return false;
+	}
+
+	/** @return Number of live threads whose name starts with prefix. */
+	static int countThreads(String prefix)
+	{
+		Thread[] threads = new Thread[Thread.activeCount() * 2 + 16];
+		int n = Thread.enumerate(threads);
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (threads[i].getName().startsWith(prefix))
+				count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void connectsAllReadersOnBoundedThreads() throws Exception
+	{
+		assertTrue("connected " + mFleet.getConnectedCount() + "/" + READERS, waitConnected(READERS));
+
+		// Heartbeats run, but not on threads of their own: ticks share the transport scheduler
+		// and pings run on the fleet's connect pool. NurApi's own threads are not counted here.
+		Thread.sleep(HEARTBEAT_INTERVAL * 3);
+		for (NurSimulatedReader sim : mSims)
+			assertTrue("pings " + sim.getPingCount(), sim.getPingCount() > 1);
+		assertEquals(0, countThreads(NurHeartbeat.TAG));
+		assertEquals(0, countThreads("NurTransportWorker-"));
+		assertTrue(countThreads("NurTransportScheduler-") <= 1);
+		assertTrue(countThreads(NurReaderFleet.TAG + "-connect") <= POOL_SIZE);
+	}
+
+	@Test
+	public void reconnectsAllReadersAfterCommonOutage() throws Exception
+	{
+		assertTrue(waitConnected(READERS));
+
+		for (NurSimulatedReader sim : mSims)
+			sim.dropClients();
+		assertTrue("reconnected " + mFleet.getConnectedCount() + "/" + READERS, waitConnected(READERS));
+
+		long worst = 0;
+		for (NurReaderFleet.Reader r : mFleet.getReaders()) {
+			assertTrue(r.getDisconnectCount() >= 1);
+			worst = Math.max(worst, r.getLastReconnectTime());
+		}
+		assertTrue("worst reconnect " + worst + " ms", worst >= 0 && worst < WAIT_TIMEOUT);
+	}
+}
@@ -0,0 +1,121 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NurReconnectPolicyTest
+{
+	@Test
+	public void fastRetriesUseBaseDelay()
+	{
+		NurReconnectPolicy p = new NurReconnectPolicy(100, 10000, 3);
+		for (int i = 0; i < 3; i++)
+			assertEquals(100, p.nextDelay());
+		assertEquals(3, p.getAttempt());
+	}
+
+	@Test
+	public void backoffStaysWithinBaseAndMax()
+	{
+		NurReconnectPolicy p = new NurReconnectPolicy(100, 2000, 0);
+		long prev = 100;
+		for (int i = 0; i < 200; i++) {
+			long d = p.nextDelay();
+			assertTrue("delay " + d, d >= 100 && d <= 2000);
+			assertTrue("delay " + d + " after " + prev, d <= Math.max(100, prev * 3));
+			prev = d;
+		}
+	}
+
+	@Test
+	public void resetRestartsSchedule()
+	{
+		NurReconnectPolicy p = new NurReconnectPolicy(50, 5000, 1);
+		for (int i = 0; i < 10; i++)
+			p.nextDelay();
+		p.reset();
+		assertEquals(0, p.getAttempt());
+		assertEquals(50, p.nextDelay());
+	}
+
+	@Test
+	public void invalidScheduleIsClamped()
+	{
+		NurReconnectPolicy p = new NurReconnectPolicy(0, -1, -5);
+		assertEquals(1, p.getBaseDelay());
+		assertEquals(1, p.getMaxDelay());
+		assertEquals(1, p.nextDelay());
+	}
+
+	@Test
+	public void probeTimeoutDefaultsToConnectTimeout()
+	{
+		NurReconnectPolicy p = new NurReconnectPolicy();
+		assertEquals(5000, p.getProbeTimeout(5000));
+		p.setProbe(true, 300);
+		assertEquals(300, p.getProbeTimeout(5000));
+	}
+
+	@Test
+	public void probeSkippedAfterRepeatedFailures()
+	{
+		NurReconnectPolicy p = new NurReconnectPolicy();
+		p.setMaxProbeFailures(2);
+		assertTrue(p.shouldProbe());
+		p.onProbeResult(false);
+		assertTrue(p.shouldProbe());
+		p.onProbeResult(false);
+		assertFalse(p.shouldProbe());
+
+		p.reset();
+		assertTrue(p.shouldProbe());
+		p.onProbeResult(false);
+		p.onProbeResult(true);
+		assertEquals(0, p.getProbeFailures());
+	}
+
+	@Test
+	public void probeNeverSkippedWithZeroLimit()
+	{
+		NurReconnectPolicy p = new NurReconnectPolicy();
+		p.setMaxProbeFailures(0);
+		for (int i = 0; i < 10; i++)
+			p.onProbeResult(false);
+		assertTrue(p.shouldProbe());
+		p.setProbe(false, 0);
+		assertFalse(p.shouldProbe());
+	}
+
+	@Test
+	public void probeDetectsListeningPort() throws Exception
+	{
+		int port;
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			port = server.getLocalPort();
+			assertTrue(NurReconnectPolicy.probe("127.0.0.1", port, 1000));
+		}
+		assertFalse(NurReconnectPolicy.probe("127.0.0.1", port, 1000));
+	}
+}
@@ -0,0 +1,77 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class NurSessionStateTest
+{
+	static NurSetup setup()
+	{
+		NurSetup s = new NurSetup();
+		s.txLevel = 5;
+		s.inventoryQ = 4;
+		s.antennaMask = 1;
+		s.readRssiFilter = new RssiFilter();
+		s.antPower = new int[] { 1, 2, 3, 4 };
+		return s;
+	}
+
+	@Test
+	public void equalSetupsHaveNoDiff()
+	{
+		assertEquals(0, NurSessionState.diffSetup(setup(), setup(), NurApi.SETUP_ALL));
+	}
+
+	@Test
+	public void diffReportsChangedValues()
+	{
+		NurSetup a = setup();
+		NurSetup b = setup();
+		b.txLevel = 0;
+		b.antennaMask = 3;
+		int flags = NurApi.SETUP_TXLEVEL | NurApi.SETUP_ANTMASK | NurApi.SETUP_INVQ;
+		assertEquals(NurApi.SETUP_TXLEVEL | NurApi.SETUP_ANTMASK, NurSessionState.diffSetup(a, b, flags));
+	}
+
+	@Test
+	public void diffIgnoresUnselectedValues()
+	{
+		NurSetup a = setup();
+		NurSetup b = setup();
+		b.txLevel = 0;
+		assertEquals(0, NurSessionState.diffSetup(a, b, NurApi.SETUP_INVQ));
+	}
+
+	@Test
+	public void diffComparesArraysAndFiltersByValue()
+	{
+		NurSetup a = setup();
+		NurSetup b = setup();
+		int flags = NurApi.SETUP_PERANTPOWER | NurApi.SETUP_READRSSIFILTER;
+		assertEquals(0, NurSessionState.diffSetup(a, b, flags));
+
+		b.antPower[2] = 0;
+		b.readRssiFilter.min = -60;
+		assertEquals(flags, NurSessionState.diffSetup(a, b, flags));
+
+		b.readRssiFilter = null;
+		assertEquals(NurApi.SETUP_READRSSIFILTER, NurSessionState.diffSetup(a, b, NurApi.SETUP_READRSSIFILTER));
+	}
+}
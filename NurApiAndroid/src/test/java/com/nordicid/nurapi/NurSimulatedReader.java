@@ -0,0 +1,173 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal TCP reader for tests. Answers ping, reader info and mode, which is what {@link NurApi#connect()}
+ * needs, and every other command with an error status. Reports application mode "B" so that NurApi
+ * does not ask for the module setup.
+ */
+class NurSimulatedReader
+{
+	static final int CMD_PING = 1;
+	static final int CMD_GETMODE = 4;
+	static final int CMD_READERINFO = 9;
+	static final int STATUS_OK = 0;
+	static final int STATUS_INVALID_COMMAND = 1;
+
+	private final ServerSocket mServer;
+	private final Thread mAcceptThread;
+	private final List<Socket> mClients = new ArrayList<>();
+	private final AtomicInteger mPings = new AtomicInteger();
+	private final AtomicInteger mCommands = new AtomicInteger();
+	private volatile boolean mRunning = true;
+
+	NurSimulatedReader() throws Exception
+	{
+		mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		mAcceptThread = new Thread(this::acceptLoop, "NurSimulatedReader-" + mServer.getLocalPort());
+		mAcceptThread.setDaemon(true);
+		mAcceptThread.start();
+	}
+
+	int getPort()
+	{
+		return mServer.getLocalPort();
+	}
+
+	int getPingCount()
+	{
+		return mPings.get();
+	}
+
+	int getCommandCount()
+	{
+		return mCommands.get();
+	}
+
+	/** Drop current clients, the listening socket stays open. */
+	void dropClients()
+	{
+		synchronized (mClients) {
+			for (Socket s : mClients)
+				closeQuietly(s);
+			mClients.clear();
+		}
+	}
+
+	void close()
+	{
+		mRunning = false;
+		try {
+			mServer.close();
+		} catch (Exception ignored) { }
+		dropClients();
+	}
+
+	private void acceptLoop()
+	{
+		while (mRunning) {
+			try {
+				final Socket s = mServer.accept();
+				synchronized (mClients) {
+					mClients.add(s);
+				}
+				Thread t = new Thread(() -> serve(s), "NurSimulatedReader-client");
+				t.setDaemon(true);
+				t.start();
+			} catch (Exception e) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket s)
+	{
+		NurReaderGateway.PacketFramer framer = new NurReaderGateway.PacketFramer();
+		byte[] buf = new byte[4096];
+		try {
+			InputStream in = s.getInputStream();
+			OutputStream out = s.getOutputStream();
+			int r;
+			while ((r = in.read(buf)) > 0) {
+				framer.append(buf, r);
+				byte[] pkt;
+				while ((pkt = framer.next()) != null) {
+					if (pkt.length <= NurReaderGateway.HEADER_SIZE || isAck(pkt))
+						continue;
+					int cmd = pkt[NurReaderGateway.HEADER_SIZE] & 0xFF;
+					mCommands.incrementAndGet();
+					if (cmd == CMD_PING) {
+						mPings.incrementAndGet();
+						out.write(response(cmd, STATUS_OK, new byte[] { 'O', 'K', 0 }));
+					} else if (cmd == CMD_GETMODE) {
+						out.write(response(cmd, STATUS_OK, new byte[] { 'B' }));
+					} else if (cmd == CMD_READERINFO) {
+						// Version, five empty strings, versions, GPIO, sensor, region and antenna counts
+						out.write(response(cmd, STATUS_OK, new byte[17]));
+					} else {
+						out.write(response(cmd, STATUS_INVALID_COMMAND, new byte[0]));
+					}
+					out.flush();
+				}
+			}
+		} catch (Exception ignored) {
+		} finally {
+			closeQuietly(s);
+		}
+	}
+
+	static boolean isAck(byte[] pkt)
+	{
+		return java.util.Arrays.equals(pkt, NurReaderGateway.ACK_PACKET);
+	}
+
+	/** Response packet: header, command, status, data and CRC-16 of the payload. */
+	static byte[] response(int cmd, int status, byte[] data)
+	{
+		int payloadLen = 2 + data.length + 2;
+		byte[] p = new byte[NurReaderGateway.HEADER_SIZE + payloadLen];
+		p[0] = (byte) 0xA5;
+		p[1] = (byte) payloadLen;
+		p[2] = (byte) (payloadLen >> 8);
+		p[5] = (byte) NurPacket.calculateHeaderCheckSum(p);
+		int off = NurReaderGateway.HEADER_SIZE;
+		p[off] = (byte) cmd;
+		p[off + 1] = (byte) status;
+		System.arraycopy(data, 0, p, off + 2, data.length);
+		int crc = CRC16.calc(p, off, payloadLen - 2);
+		p[p.length - 2] = (byte) crc;
+		p[p.length - 1] = (byte) (crc >> 8);
+		return p;
+	}
+
+	private static void closeQuietly(Socket s)
+	{
+		try {
+			s.close();
+		} catch (Exception ignored) { }
+	}
+}
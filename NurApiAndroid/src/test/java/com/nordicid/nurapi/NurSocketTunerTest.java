@@ -0,0 +1,98 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NurSocketTunerTest
+{
+	/** Feed a steady receive rate for one measurement window. */
+	static boolean feed(NurSocketTuner t, long start, int bytesPerMs)
+	{
+		boolean changed = false;
+		for (long now = start; now <= start + NurSocketTuner.WINDOW_MS; now += 10)
+			changed |= t.onReceived(bytesPerMs * 10, now);
+		return changed;
+	}
+
+	@Test
+	public void noChangeBeforeWindow()
+	{
+		NurSocketTuner t = new NurSocketTuner("tuner-a", 1);
+		assertEquals(0, t.getInitialRcvBuf());
+		assertFalse(t.onReceived(1000, 1000));
+		assertFalse(t.onReceived(1000, 1500));
+		assertEquals(NurSocketTuner.MIN_CHUNK, t.getReadChunk());
+	}
+
+	@Test
+	public void buffersFollowBandwidthDelayProduct()
+	{
+		NurSocketTuner t = new NurSocketTuner("tuner-b", 1);
+		// 100 ms round trip, then about 1 MB/s for one window
+		t.onSent(10, 1000);
+		assertTrue(feed(t, 1100, 1000));
+		assertEquals(100, t.getRtt(), 0.001);
+		// About 1 MB/s * 100 ms * 2
+		assertTrue("rcvbuf " + t.getRcvBuf(), t.getRcvBuf() >= 150000 && t.getRcvBuf() <= 250000);
+		assertEquals(NurSocketTuner.MIN_SNDBUF, t.getSndBuf());
+		assertTrue(t.getReadChunk() >= NurSocketTuner.MIN_CHUNK && t.getReadChunk() <= NurSocketTuner.MAX_CHUNK);
+	}
+
+	@Test
+	public void smallRateChangeDoesNotFlap()
+	{
+		NurSocketTuner t = new NurSocketTuner("tuner-c", 1);
+		t.onSent(10, 1000);
+		assertTrue(feed(t, 1100, 1000));
+		int rcv = t.getRcvBuf();
+		assertFalse(feed(t, 2110, 1200));
+		assertEquals(rcv, t.getRcvBuf());
+	}
+
+	@Test
+	public void buffersAreClamped()
+	{
+		NurSocketTuner t = new NurSocketTuner("tuner-d", 1);
+		t.onSent(10, 1000);
+		t.onReceived(10, 1001);
+		feed(t, 2000, 1);
+		assertEquals(NurSocketTuner.MIN_RCVBUF, t.getRcvBuf());
+
+		NurSocketTuner fast = new NurSocketTuner("tuner-e", 1);
+		fast.onSent(10, 1000);
+		fast.onReceived(10, 3000);
+		feed(fast, 4000, 100000);
+		assertEquals(NurSocketTuner.MAX_RCVBUF, fast.getRcvBuf());
+		assertEquals(NurSocketTuner.MAX_CHUNK, fast.getReadChunk());
+	}
+
+	@Test
+	public void tunedSizeIsRememberedPerAddress()
+	{
+		NurSocketTuner t = new NurSocketTuner("tuner-f", 4333);
+		t.onSent(10, 1000);
+		feed(t, 1100, 1000);
+
+		assertEquals(t.getRcvBuf(), new NurSocketTuner("tuner-f", 4333).getInitialRcvBuf());
+		assertEquals(0, new NurSocketTuner("tuner-f", 4334).getInitialRcvBuf());
+	}
+}
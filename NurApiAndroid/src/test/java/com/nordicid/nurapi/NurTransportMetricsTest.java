@@ -0,0 +1,158 @@
+/*
+  Copyright 2016- Nordic ID
+  NORDIC ID SOFTWARE DISCLAIMER
+
+  You are about to use Nordic ID Demo Software ("Software").
+  It is explicitly stated that Nordic ID does not give any kind of warranties,
+  expressed or implied, for this Software. Software is provided "as is" and with
+  all faults. Under no circumstances is Nordic ID liable for any direct, special,
+  incidental or indirect damages or for any economic consequential damages to you
+  or to any third party.
+
+  The use of this software indicates your complete and unconditional understanding
+  of the terms of this disclaimer.
+
+  IF YOU DO NOT AGREE OF THE TERMS OF THIS DISCLAIMER, DO NOT USE THE SOFTWARE.
+*/
+package com.nordicid.nurapi;
+
+import org.junit.Test;
+
+import static com.nordicid.nurapi.NurPacketFramerTest.concat;
+import static com.nordicid.nurapi.NurPacketFramerTest.packet;
+import static org.junit.Assert.assertEquals;
+
+public class NurTransportMetricsTest
+{
+	@Test
+	public void countsBytesAndPackets()
+	{
+		NurTransportMetrics m = new NurTransportMetrics();
+		byte[] cmd = packet(0, 0x55, 3);
+		m.onWrite(cmd, cmd.length);
+		m.onSegment();
+		byte[] rsp = packet(0, 0x55, 10);
+		m.onRead(rsp, 0, rsp.length);
+
+		assertEquals(cmd.length, m.getBytesOut());
+		assertEquals(rsp.length, m.getBytesIn());
+		assertEquals(1, m.getPacketsOut());
+		assertEquals(1, m.getSegmentsOut());
+		assertEquals(1, m.getReadCount());
+	}
+
+	@Test
+	public void latencyMatchesResponseByCommand()
+	{
+		NurTransportMetrics m = new NurTransportMetrics();
+		byte[] cmd = packet(0, 0x55, 3);
+		m.onWrite(cmd, cmd.length);
+
+		// Unsolicited packet and a stale response of another command do not end the measurement
+		byte[] data = concat(packet(NurPacket.FLAG_UNSOL, 0x55, 12), packet(0, 0x11, 4), packet(0, 0x55, 8));
+		m.onRead(data, 0, 10);
+		assertEquals(0, m.getLatencyCount());
+		m.onRead(data, 10, 12);
+		assertEquals(0, m.getLatencyCount());
+		m.onRead(data, 22, data.length - 22);
+		assertEquals(1, m.getLatencyCount());
+	}
+
+	@Test
+	public void resyncsAfterGarbageAndBadHeaders()
+	{
+		NurTransportMetrics m = new NurTransportMetrics();
+		byte[] cmd = packet(0, 0x55, 3);
+		m.onWrite(cmd, cmd.length);
+
+		byte[] bad = packet(0, 0x55, 4);
+		bad[5] ^= 0x01;
+		byte[] rsp = packet(0, 0x55, 300);
+		byte[] data = concat(new byte[] { (byte) 0xA5, 0x00, 0x13 }, bad, packet(NurPacket.FLAG_UNSOL, 0x55, 2),
+				packet(0, 0x11, 300), rsp);
+
+		// One byte at a time, the worst chunking a link can do. Response counts from its command byte.
+		int cmdAt = data.length - rsp.length + NurTransportMetrics.CMD_OFFSET;
+		for (int i = 0; i < data.length; i++) {
+			m.onRead(data, i, 1);
+			assertEquals("at " + i, i < cmdAt ? 0 : 1, m.getLatencyCount());
+		}
+	}
+
+	@Test
+	public void largePayloadIsSkipped()
+	{
+		NurTransportMetrics m = new NurTransportMetrics();
+		byte[] cmd = packet(0, 0x55, 3);
+		m.onWrite(cmd, cmd.length);
+
+		// Stream payload bytes that look like a response must not end the measurement
+		byte[] stream = packet(NurPacket.FLAG_UNSOL, 0x80, 4000);
+		byte[] inner = packet(0, 0x55, 3);
+		System.arraycopy(inner, 0, stream, 100, inner.length);
+		byte[] data = concat(stream, packet(0, 0x55, 8));
+		m.onRead(data, 0, 2000);
+		m.onRead(data, 2000, 2000);
+		assertEquals(0, m.getLatencyCount());
+		m.onRead(data, 4000, data.length - 4000);
+		assertEquals(1, m.getLatencyCount());
+	}
+
+	@Test
+	public void ackDoesNotStartMeasurement()
+	{
+		NurTransportMetrics m = new NurTransportMetrics();
+		m.onWrite(NurReaderGateway.ACK_PACKET, NurReaderGateway.ACK_PACKET.length);
+		byte[] rsp = packet(0, 0x02, 3);
+		m.onRead(rsp, 0, rsp.length);
+		assertEquals(0, m.getLatencyCount());
+		assertEquals(1, m.getPacketsOut());
+	}
+
+	@Test
+	public void responseIsCountedOnce()
+	{
+		NurTransportMetrics m = new NurTransportMetrics();
+		byte[] cmd = packet(0, 0x55, 3);
+		byte[] rsp = packet(0, 0x55, 8);
+		m.onWrite(cmd, cmd.length);
+		m.onRead(rsp, 0, rsp.length);
+		m.onRead(rsp, 0, rsp.length);
+		assertEquals(1, m.getLatencyCount());
+	}
+
+	@Test
+	public void bucketsArePowersOfTwo()
+	{
+		assertEquals(0, NurTransportMetrics.bucketOf(0));
+		assertEquals(1, NurTransportMetrics.bucketOf(1));
+		assertEquals(2, NurTransportMetrics.bucketOf(2));
+		assertEquals(2, NurTransportMetrics.bucketOf(3));
+		assertEquals(11, NurTransportMetrics.bucketOf(1024));
+		assertEquals(NurTransportMetrics.LATENCY_BUCKETS - 1, NurTransportMetrics.bucketOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void errorsAndReset()
+	{
+		NurTransportMetrics m = new NurTransportMetrics();
+		m.onReadTimeout();
+		m.onReadError("boom");
+		m.onWriteError("bang");
+		assertEquals(1, m.getReadTimeouts());
+		assertEquals(1, m.getReadErrors());
+		assertEquals(1, m.getWriteErrors());
+		assertEquals("write: bang", m.getLastError());
+
+		byte[] cmd = packet(0, 0x55, 3);
+		m.onWrite(cmd, cmd.length);
+		m.reset();
+		byte[] rsp = packet(0, 0x55, 8);
+		m.onRead(rsp, 0, rsp.length);
+		assertEquals(0, m.getLatencyCount());
+		assertEquals(0, m.getReadErrors());
+		assertEquals(null, m.getLastError());
+		assertEquals(0, m.getLatencyPercentile(50));
+		assertEquals(0, m.getAverageLatency(), 0);
+	}
+}